@@ -0,0 +1,64 @@
+package com.gmo.isto.dlwork;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of CharacterIterator.next() per minibatch, at several character set sizes, with and without buffer reuse.
+ * Run with "-prof gc" to see the allocation rate per minibatch. The text file is generated in the temp directory.
+ * @author Guangwen Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharacterIteratorBenchmark {
+    static final int TextLength = 1000000;
+
+    @Param({"100", "1000", "5000"})
+    public int numCharacters;
+
+    @Param({"0", "2"})
+    public int bufferPoolSize;
+
+    private File textFile;
+    private CharacterIterator iter;
+
+    @Setup
+    public void setUp() throws IOException {
+        //Characters: newline and CJK ideographs from U+4E00
+        char[] validCharacters = new char[numCharacters];
+        validCharacters[0] = '\n';
+        for( int i=1; i<numCharacters; i++ ) validCharacters[i] = (char) (0x4E00 + i);
+
+        Random r = new Random(12345);
+        textFile = File.createTempFile("charIterBenchmark", ".txt");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(textFile), Charset.forName("UTF-8")))) {
+            for( int i=0; i<TextLength; i++ ){
+                if( i % 80 == 79 ) w.write('\n');
+                else w.write(validCharacters[1 + r.nextInt(numCharacters - 1)]);
+            }
+        }
+        iter = new CharacterIterator(textFile.getAbsolutePath(), Charset.forName("UTF-8"), IteratorBenchmark.MiniBatchSize,
+                IteratorBenchmark.ExampleLength, validCharacters, new Random(12345));
+        iter.setBufferPoolSize(bufferPoolSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if( textFile != null && !textFile.delete() ) textFile.deleteOnExit();
+    }
+
+    @Benchmark
+    public DataSet characterIteratorNext() {
+        if( !iter.hasNext() ) iter.reset();
+        return iter.next();
+    }
+}
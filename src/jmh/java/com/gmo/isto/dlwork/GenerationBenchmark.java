@@ -0,0 +1,113 @@
+package com.gmo.isto.dlwork;
+
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.EmbeddingLayer;
+import org.deeplearning4j.nn.conf.layers.GravesLSTM;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToRnnPreProcessor;
+import org.deeplearning4j.nn.conf.preprocessor.RnnToFeedForwardPreProcessor;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per generated token at several vocabulary sizes: drawing one word from a softmax distribution with
+ * GravesLSTMCharModellingExample.sampleFromDistribution and with WordSampler, and a whole
+ * sampleWordsFromNetwork call (forward pass included) on a small embedding + GravesLSTM network.
+ * topK is the WordSampler top-k setting (0 samples from the full distribution); sampleFromDistribution ignores it.
+ * @author Guangwen Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerationBenchmark {
+    static final int NumSamples = 4;
+    static final int WordsToSample = 50;
+
+    @Param({"1000", "10000", "50000"})
+    public int vocabSize;
+
+    @Param({"0", "40"})
+    public int topK;
+
+    private Random rng;
+    private double[] distribution;
+    private INDArray output;
+    private WordSampler sampler;
+    private MultiLayerNetwork net;
+    private JapaneseWordIterator iter;
+
+    @Setup
+    public void setUp() throws Exception {
+        rng = new Random(12345);
+        float[] probs = new float[NumSamples * vocabSize];
+        distribution = new double[vocabSize];
+        for( int s=0; s<NumSamples; s++ ){
+            double sum = 0.0;
+            for( int j=0; j<vocabSize; j++ ){
+                probs[s * vocabSize + j] = (float) Math.exp(3 * rng.nextGaussian());
+                sum += probs[s * vocabSize + j];
+            }
+            for( int j=0; j<vocabSize; j++ ) probs[s * vocabSize + j] /= sum;
+        }
+        double sum = 0.0;
+        for( int j=0; j<vocabSize; j++ ) sum += probs[j];
+        for( int j=0; j<vocabSize; j++ ) distribution[j] = probs[j] / sum;	//Sums to 1 in double precision
+        output = Nd4j.create(probs, new int[]{NumSamples, vocabSize});
+        sampler = new WordSampler(vocabSize, rng).setTopK(topK);
+
+        iter = new JapaneseWordIterator(IteratorBenchmark.syntheticCorpus(vocabSize, 10000, 12345), NumSamples,
+                IteratorBenchmark.ExampleLength, new Random(12345));
+        iter.setIndexInput(true);
+        net = new MultiLayerNetwork(getConfiguration(vocabSize, 32, 64));
+        net.init();
+    }
+
+    private static MultiLayerConfiguration getConfiguration(int vocabSize, int embeddingSize, int lstmLayerSize) {
+        return new NeuralNetConfiguration.Builder()
+            .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(1)
+            .learningRate(0.01)
+            .seed(12345)
+            .weightInit(WeightInit.XAVIER)
+            .updater(Updater.RMSPROP)
+            .list()
+            .layer(0, new EmbeddingLayer.Builder().nIn(vocabSize).nOut(embeddingSize)
+                    .activation("identity").build())
+            .layer(1, new GravesLSTM.Builder().nIn(embeddingSize).nOut(lstmLayerSize)
+                    .activation("tanh").build())
+            .layer(2, new RnnOutputLayer.Builder(LossFunction.MCXENT).activation("softmax")
+                    .nIn(lstmLayerSize).nOut(vocabSize).build())
+            .inputPreProcessor(0, new RnnToFeedForwardPreProcessor())
+            .inputPreProcessor(1, new FeedForwardToRnnPreProcessor())
+            .pretrain(false).backprop(true)
+            .build();
+    }
+
+    @Benchmark
+    public int sampleFromDistribution() {
+        return GravesLSTMCharModellingExample.sampleFromDistribution(distribution, rng);
+    }
+
+    @Benchmark
+    public int wordSampler() {
+        return sampler.sample(output, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NumSamples * WordsToSample)
+    public String[] sampleWordsFromNetwork() {
+        return GravesLSTMCharModellingExample.sampleWordsFromNetwork(net, iter, sampler, WordsToSample, NumSamples);
+    }
+}
@@ -0,0 +1,67 @@
+package com.gmo.isto.dlwork;
+
+import com.gmo.isto.dlwork.tools.CorpusCache;
+import org.nd4j.linalg.dataset.DataSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of JapaneseWordIterator.next() per minibatch, at several vocabulary sizes, with one-hot and index input
+ * and with and without buffer reuse. Run with "-prof gc" to see the allocation rate per minibatch.
+ * The corpus is synthetic, with Zipf-like word frequencies, so no database or tokenizer is needed.
+ * @author Guangwen Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IteratorBenchmark {
+    static final int MiniBatchSize = 32;
+    static final int ExampleLength = 200;
+    static final int CorpusTokens = 1000000;
+
+    @Param({"1000", "10000", "50000"})
+    public int vocabSize;
+
+    @Param({"false", "true"})
+    public boolean indexInput;
+
+    @Param({"0", "2"})
+    public int bufferPoolSize;
+
+    private JapaneseWordIterator iter;
+
+    /** Corpus of numTokens random words w0 ... w(vocabSize-1); low indexes are much more frequent */
+    static CorpusCache.Entry syntheticCorpus(int vocabSize, int numTokens, long seed) {
+        List<String> vocab = new ArrayList<>(vocabSize);
+        for( int i=0; i<vocabSize; i++ ) vocab.add("w" + i);
+        Random r = new Random(seed);
+        int[] ids = new int[numTokens];
+        for( int i=0; i<numTokens; i++ ){
+            double u = r.nextDouble();
+            ids[i] = (int) (vocabSize * u * u * u);
+        }
+        return new CorpusCache.Entry(vocab, IntBuffer.wrap(ids), numTokens);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        iter = new JapaneseWordIterator(syntheticCorpus(vocabSize, CorpusTokens, 12345), MiniBatchSize, ExampleLength, new Random(12345));
+        iter.setIndexInput(indexInput);
+        iter.setBufferPoolSize(bufferPoolSize);
+    }
+
+    @Benchmark
+    public DataSet wordIteratorNext() {
+        if( !iter.hasNext() ) iter.reset();
+        return iter.next();
+    }
+}
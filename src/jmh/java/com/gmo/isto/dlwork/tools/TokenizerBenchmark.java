@@ -0,0 +1,92 @@
+package com.gmo.isto.dlwork.tools;
+
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link JapaneseTokenizer} over a built-in sample of Japanese news text, with and without
+ * subword splitting and with lazy (sentence by sentence) and eager tokenization. Run with "-prof gc" to compare
+ * allocation. The "tokens" counter is reported in tokens/sec, the benchmark score in sample texts/sec.
+ * @author Guangwen Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+    static final String SampleText = "sample-ja.txt";
+
+    @Param({"words", "subwords"})
+    public String units;
+
+    @Param({"true", "false"})
+    public boolean lazy;
+
+    private List<String> lines;
+    private JapaneseTokenizerFactory factory;
+
+    /** Tokens produced during the iteration, reported as a rate */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            tokens = 0;
+        }
+    }
+
+    /** Lines of the built-in sample text */
+    static List<String> loadSample() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                TokenizerBenchmark.class.getResourceAsStream(SampleText), Charset.forName("UTF-8")))) {
+            String line;
+            while((line = r.readLine()) != null){
+                if(!line.isEmpty()) lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        lines = loadSample();
+        factory = new JapaneseTokenizerFactory(JapaneseTokenizer.newKuromojiTokenizer());
+        factory.setLazy(lazy);
+        if("subwords".equals(units)){
+            TokenizedCorpus corpus = new TokenizedCorpus(0);
+            for(String line : lines){
+                Tokenizer t = factory.create(line);
+                while(t.hasMoreTokens()){
+                    String token = t.nextToken();
+                    if(token != null) corpus.addWord(token);
+                }
+            }
+            factory.setSubwordModel(BpeModel.train(corpus.getWordFrequencies(), 200));
+        }
+    }
+
+    @Benchmark
+    public void tokenize(Counters counters, Blackhole bh) {
+        for(String line : lines){
+            Tokenizer t = factory.create(line);
+            while(t.hasMoreTokens()){
+                bh.consume(t.nextToken());
+                counters.tokens++;
+            }
+        }
+    }
+}
@@ -4,12 +4,17 @@ import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.factory.Nd4j;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /** A simple DataSetIterator for use in the com.gmo.isto.dlwork.GravesLSTMCharModellingExample.
@@ -23,21 +28,36 @@ import java.util.*;
  * @author Alex Black
  */
 public class CharacterIterator implements DataSetIterator {
+    //Bytes of the input file mapped and decoded at a time
+    static final int DecodeWindow = 1 << 26;
+    //Bytes per mapped segment of the index file
+    static final int SegmentShift = 30;
+
     //Valid characters
 	private char[] validCharacters;
-    //Maps each character to an index ind the input/output
-	private Map<Character,Integer> charToIdxMap;
-    //All characters of the input file (after filtering to only those that are valid
-	private char[] fileCharacters;
+    //Index of each character in the input/output, -1 for characters that are not valid
+	private int[] charToIdx;
+    //Indexes of all characters of the input file (after filtering to only those that are valid), one byte each
+    //for up to 256 valid characters and two bytes otherwise, in a memory-mapped temporary file
+	private ByteBuffer[] fileIndexes;
+	private int indexWidth;
+	private int segmentShift;
+	private int numCharacters;
     //Length of each example/minibatch (number of characters)
 	private int exampleLength;
     //Size of each minibatch (number of examples)
 	private int miniBatchSize;
 	private Random rng;
     //Offsets for the start of each example
-    private LinkedList<Integer> exampleStartOffsets = new LinkedList<Integer>();
+    private EpochScheduler exampleStartOffsets;
+    //Reused minibatch arrays, created on first use
+    private int bufferPoolSize = 0;
+    private MinibatchBufferPool buffers;
 
 	/**
+	 * The file is memory-mapped and decoded in one streaming pass, and only the indexes of valid characters are kept,
+	 * outside the heap, so files larger than the heap can be used.
+	 * Line terminators (\n, \r\n or \r) become '\n', and a final line without one is ended with '\n'.
 	 * @param textFilePath Path to text file to use for generating samples
 	 * @param textFileEncoding Encoding of the text file. Can try Charset.defaultCharset()
 	 * @param miniBatchSize Number of examples per mini-batch
@@ -48,51 +68,154 @@ public class CharacterIterator implements DataSetIterator {
 	 */
 	public CharacterIterator(String textFilePath, Charset textFileEncoding, int miniBatchSize, int exampleLength,
                              char[] validCharacters, Random rng) throws IOException {
+		this(textFilePath, textFileEncoding, miniBatchSize, exampleLength, validCharacters, rng, DecodeWindow, SegmentShift);
+	}
+
+	/**
+	 * As the public constructor, with other window sizes, e.g. tiny ones in tests
+	 * @param decodeWindow Bytes of the input file mapped and decoded at a time; at least 4, so that a window holds a character
+	 * @param segmentShift Log2 of the bytes per mapped segment of the index file
+	 */
+	CharacterIterator(String textFilePath, Charset textFileEncoding, int miniBatchSize, int exampleLength,
+					  char[] validCharacters, Random rng, int decodeWindow, int segmentShift) throws IOException {
 		if( !new File(textFilePath).exists()) throw new IOException("Could not access file (does not exist): " + textFilePath);
 		if( miniBatchSize <= 0 ) throw new IllegalArgumentException("Invalid miniBatchSize (must be >0)");
+		if( validCharacters.length > 65536 ) throw new IllegalArgumentException("Invalid validCharacters (at most 65536)");
 		this.validCharacters = validCharacters;
 		this.exampleLength = exampleLength;
 		this.miniBatchSize = miniBatchSize;
 		this.rng = rng;
 
-		//Store valid characters is a map for later use in vectorization
-		charToIdxMap = new HashMap<Character,Integer>();
-		for( int i=0; i<validCharacters.length; i++ ) charToIdxMap.put(validCharacters[i], i);
-
-		//Load file and convert contents to a char[]
-		boolean newLineValid = charToIdxMap.containsKey('\n');
-		List<String> lines = Files.readAllLines(new File(textFilePath).toPath(),textFileEncoding);
-		int maxSize = lines.size();	//add lines.size() to account for newline characters at end of each line
-		for( String s : lines ) maxSize += s.length();
-		char[] characters = new char[maxSize];
-		int currIdx = 0;
-		for( String s : lines ){
-			char[] thisLine = s.toCharArray();
-			for (char aThisLine : thisLine) {
-				if (!charToIdxMap.containsKey(aThisLine)) continue;
-				characters[currIdx++] = aThisLine;
+		//Direct lookup table instead of a map, for vectorization
+		charToIdx = new int[65536];
+		Arrays.fill(charToIdx, -1);
+		for( int i=0; i<validCharacters.length; i++ ) charToIdx[validCharacters[i]] = i;
+		indexWidth = validCharacters.length <= 256 ? 1 : 2;
+		this.segmentShift = segmentShift;
+
+		//Decode the file and write the indexes of its valid characters
+		File indexFile = File.createTempFile("charIndexes", ".bin");
+		long totalChars;
+		try {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16)) {
+				totalChars = convertFile(new File(textFilePath), textFileEncoding, decodeWindow, charToIdx, indexWidth, out);
 			}
-			if(newLineValid) characters[currIdx++] = '\n';
+			long n = indexFile.length() / indexWidth;
+			if( n > Integer.MAX_VALUE ) throw new IOException("Too many valid characters in file (at most " + Integer.MAX_VALUE + ")");
+			numCharacters = (int) n;
+			fileIndexes = mapIndexes(indexFile, (long) numCharacters * indexWidth, segmentShift);
+		} finally {
+			//The mapping stays valid after the file is deleted
+			if( !indexFile.delete() ) indexFile.deleteOnExit();
 		}
+		if( exampleLength >= numCharacters ) throw new IllegalArgumentException("exampleLength="+exampleLength
+				+" cannot exceed number of valid characters in file ("+numCharacters+")");
+
+		long nRemoved = totalChars - numCharacters;
+		System.out.println("Loaded and converted file: " + numCharacters + " valid characters of "
+		+ totalChars + " total characters (" + nRemoved + " removed)");
+
+        //This defines the order in which parts of the file are fetched
+        int nMinibatchesPerEpoch = (numCharacters-1) / exampleLength - 2;   //-2: for end index, and for partial example
+        exampleStartOffsets = new EpochScheduler(Math.max(nMinibatchesPerEpoch, 0), exampleLength, rng.nextLong(), true);
+	}
 
-		if( currIdx == characters.length ){
-			fileCharacters = characters;
-		} else {
-			fileCharacters = Arrays.copyOfRange(characters, 0, currIdx);
+	/**
+	 * Decodes the file window by window, and writes the index of every valid character to out, as indexWidth bytes
+	 * in big-endian order. Line terminators are normalized as described for the constructor.
+	 * @param decodeWindow Bytes mapped and decoded at a time; at least 4
+	 * @param charToIdx Index of each character, -1 for characters that are not valid
+	 * @return number of characters in the file, line terminators counted as one
+	 */
+	static long convertFile(File textFile, Charset encoding, int decodeWindow, int[] charToIdx, int indexWidth,
+							OutputStream out) throws IOException {
+		if( decodeWindow < 4 ) throw new IllegalArgumentException("Invalid decodeWindow (must be >=4)");
+		CharsetDecoder decoder = encoding.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate(1 << 16);
+		long totalChars = 0;
+		boolean prevCR = false;
+		char last = '\n';
+		try (FileChannel ch = FileChannel.open(textFile.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			long pos = 0;
+			boolean endOfInput;
+			do {
+				long len = Math.min(decodeWindow, size - pos);
+				endOfInput = pos + len == size;
+				MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+				boolean flushing = false;
+				while( true ){
+					CoderResult result = flushing ? decoder.flush(chars) : decoder.decode(in, chars, endOfInput);
+					chars.flip();
+					while( chars.hasRemaining() ){
+						char c = chars.get();
+						if( c == '\n' && prevCR ){
+							prevCR = false;
+							continue;
+						}
+						prevCR = c == '\r';
+						if( prevCR ) c = '\n';
+						totalChars++;
+						last = c;
+						writeIndex(out, charToIdx, indexWidth, c);
+					}
+					chars.clear();
+					if( result.isOverflow() ) continue;
+					if( endOfInput && !flushing ){
+						flushing = true;
+						continue;
+					}
+					break;
+				}
+				//Bytes of a character split by the window end are decoded with the next window
+				pos += in.position();
+			} while( !endOfInput );
 		}
-		if( exampleLength >= fileCharacters.length ) throw new IllegalArgumentException("exampleLength="+exampleLength
-				+" cannot exceed number of valid characters in file ("+fileCharacters.length+")");
+		if( last != '\n' ){
+			totalChars++;
+			writeIndex(out, charToIdx, indexWidth, '\n');
+		}
+		return totalChars;
+	}
 
-		int nRemoved = maxSize - fileCharacters.length;
-		System.out.println("Loaded and converted file: " + fileCharacters.length + " valid characters of "
-		+ maxSize + " total characters (" + nRemoved + " removed)");
+	private static void writeIndex(OutputStream out, int[] charToIdx, int indexWidth, char c) throws IOException {
+		int idx = charToIdx[c];
+		if( idx < 0 ) return;
+		if( indexWidth == 2 ) out.write(idx >>> 8);
+		out.write(idx);
+	}
 
-        //This defines the order in which parts of the file are fetched
-        int nMinibatchesPerEpoch = (fileCharacters.length-1) / exampleLength - 2;   //-2: for end index, and for partial example
-        for( int i=0; i<nMinibatchesPerEpoch; i++ ){
-            exampleStartOffsets.add(i * exampleLength);
-        }
-        Collections.shuffle(exampleStartOffsets,rng);
+	/** Maps the first size bytes of a file read-only, in segments of 2^SegmentShift bytes */
+	static ByteBuffer[] mapIndexes(File indexFile, long size) throws IOException {
+		return mapIndexes(indexFile, size, SegmentShift);
+	}
+
+	/** Maps the first size bytes of a file read-only, in segments of 2^segmentShift bytes */
+	static ByteBuffer[] mapIndexes(File indexFile, long size, int segmentShift) throws IOException {
+		int nSegments = (int) ((size + (1L << segmentShift) - 1) >>> segmentShift);
+		ByteBuffer[] segments = new ByteBuffer[nSegments];
+		try (FileChannel ch = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			for( int i=0; i<nSegments; i++ ){
+				long start = (long) i << segmentShift;
+				segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << segmentShift, size - start));
+			}
+		}
+		return segments;
+	}
+
+	/** Index of the valid character at position pos of the filtered file */
+	int indexAt(int pos) {
+		long offset = (long) pos * indexWidth;
+		ByteBuffer segment = fileIndexes[(int) (offset >>> segmentShift)];
+		int i = (int) (offset & ((1L << segmentShift) - 1));
+		return indexWidth == 1 ? segment.get(i) & 0xff : segment.getChar(i);
+	}
+
+	/** Number of valid characters in the file, including the added final '\n' */
+	int getNumCharacters() {
+		return numCharacters;
 	}
 
 	/** A minimal character set, with a-z, A-Z, 0-9 and common punctuation etc */
@@ -122,12 +245,30 @@ public class CharacterIterator implements DataSetIterator {
 		return out;
 	}
 
+	/**
+	 * Reuses a ring of preallocated minibatch arrays instead of allocating new ones in every next() call.
+	 * A returned DataSet then stays valid only until poolSize further minibatches have been taken, so poolSize must be
+	 * larger than the number of minibatches the caller holds at once (e.g. 2 for a plain fit loop).
+	 * @param poolSize Number of reused minibatches, 0 (the default) to allocate fresh arrays
+	 */
+	public void setBufferPoolSize(int poolSize) {
+		if( poolSize < 0 ) throw new IllegalArgumentException("Invalid poolSize (must be >=0)");
+		this.bufferPoolSize = poolSize;
+		this.buffers = null;
+	}
+
+	/** Order of the examples in the current epoch */
+	public EpochScheduler getScheduler() {
+		return exampleStartOffsets;
+	}
+
 	public char convertIndexToCharacter( int idx ){
 		return validCharacters[idx];
 	}
 
+	/** @return index of the character, or -1 if it is not a valid character */
 	public int convertCharacterToIndex( char c ){
-		return charToIdxMap.get(c);
+		return charToIdx[c];
 	}
 
 	public char getRandomCharacter(){
@@ -135,7 +276,7 @@ public class CharacterIterator implements DataSetIterator {
 	}
 
 	public boolean hasNext() {
-		return exampleStartOffsets.size() > 0;
+		return exampleStartOffsets.hasNext();
 	}
 
 	public DataSet next() {
@@ -143,35 +284,37 @@ public class CharacterIterator implements DataSetIterator {
 	}
 
 	public DataSet next(int num) {
-		if( exampleStartOffsets.size() == 0 ) throw new NoSuchElementException();
+		if( !exampleStartOffsets.hasNext() ) throw new NoSuchElementException();
 
-        int currMinibatchSize = Math.min(num, exampleStartOffsets.size());
-		//Allocate space:
+        int currMinibatchSize = Math.min(num, exampleStartOffsets.remaining());
+		//Get space from the buffer pool:
         //Note the order here:
         // dimension 0 = number of examples in minibatch
         // dimension 1 = size of each vector (i.e., number of characters)
         // dimension 2 = length of each time series/example
-		INDArray input = Nd4j.zeros(currMinibatchSize,validCharacters.length,exampleLength);
-		INDArray labels = Nd4j.zeros(currMinibatchSize,validCharacters.length,exampleLength);
+		if( buffers == null ) buffers = new MinibatchBufferPool(bufferPoolSize, miniBatchSize, validCharacters.length, validCharacters.length, exampleLength);
+		MinibatchBufferPool.Slot slot = buffers.next(currMinibatchSize);
 
         for( int i=0; i<currMinibatchSize; i++ ){
-            int startIdx = exampleStartOffsets.removeFirst();
+            int startIdx = exampleStartOffsets.next();
             int endIdx = startIdx + exampleLength;
-            int currCharIdx = charToIdxMap.get(fileCharacters[startIdx]);	//Current input
+            int currCharIdx = indexAt(startIdx);	//Current input
             int c=0;
             for( int j=startIdx+1; j<endIdx; j++, c++ ){
-                int nextCharIdx = charToIdxMap.get(fileCharacters[j]);		//Next character to predict
-                input.putScalar(new int[]{i,currCharIdx,c}, 1.0);
-                labels.putScalar(new int[]{i,nextCharIdx,c}, 1.0);
+                int nextCharIdx = indexAt(j);		//Next character to predict
+                slot.putInput(i, currCharIdx, c, 1.0);
+                slot.putLabel(i, nextCharIdx, c);
                 currCharIdx = nextCharIdx;
             }
         }
 
+		INDArray input = slot.getInput();
+		INDArray labels = slot.getLabels();
 		return new DataSet(input,labels);
 	}
 
 	public int totalExamples() {
-		return (fileCharacters.length-1) / miniBatchSize - 2;
+		return (numCharacters-1) / exampleLength - 2;
 	}
 
 	public int inputColumns() {
@@ -183,12 +326,7 @@ public class CharacterIterator implements DataSetIterator {
 	}
 
 	public void reset() {
-        exampleStartOffsets.clear();
-		int nMinibatchesPerEpoch = totalExamples();
-        for( int i=0; i<nMinibatchesPerEpoch; i++ ){
-            exampleStartOffsets.add(i * miniBatchSize);
-        }
-        Collections.shuffle(exampleStartOffsets,rng);
+        exampleStartOffsets.reset();
 	}
 
 	public int batch() {
@@ -196,7 +334,7 @@ public class CharacterIterator implements DataSetIterator {
 	}
 
 	public int cursor() {
-		return totalExamples() - exampleStartOffsets.size();
+		return exampleStartOffsets.cursor();
 	}
 
 	public int numExamples() {
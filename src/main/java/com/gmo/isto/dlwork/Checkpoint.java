@@ -0,0 +1,255 @@
+package com.gmo.isto.dlwork;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Snapshot of a training run: network configuration and parameters, updater state (e.g. RMSProp history),
+ * vocabulary, and the position of the training iterator (epoch, cursor and shuffle seed of its EpochScheduler,
+ * and the settings that decide what an example is: exampleLength, document mode and stream mode).
+ * A run restarted from a checkpoint continues with the next minibatch after the last one fitted before it.
+ * The position only means something in the same corpus, so a checkpoint taken before the corpus changed (e.g. a
+ * CorpusStore that was refreshed since) cannot be resumed; see {@link #mismatch(JapaneseWordIterator)}.
+ *
+ * A snapshot only copies parameters and updater state, so it is cheap to take between minibatches;
+ * {@link Writer} writes it to disk on a background thread.
+ * @author Guangwen Liu
+ */
+public class Checkpoint {
+    private static final int Magic = 0x4e43504b;
+    private static final int Version = 3;
+
+    private final String confJson;
+    private final INDArray params;
+    private final Updater updater;
+    private final List<String> vocabulary;
+    private final boolean indexInput;
+    private final int numWords;
+    private final int exampleLength;
+    private final boolean documentMode;
+    private final boolean streamMode;
+    private final int epoch;
+    private final int miniBatchNumber;
+    private final long schedulerSeed;
+    private final boolean schedulerShuffle;
+    private final int schedulerEpoch;
+    private final int schedulerCursor;
+
+    private Checkpoint(String confJson, INDArray params, Updater updater, List<String> vocabulary, boolean indexInput,
+                       int numWords, int exampleLength, boolean documentMode, boolean streamMode, int epoch, int miniBatchNumber, long schedulerSeed, boolean schedulerShuffle,
+                       int schedulerEpoch, int schedulerCursor) {
+        this.confJson = confJson;
+        this.params = params;
+        this.updater = updater;
+        this.vocabulary = vocabulary;
+        this.indexInput = indexInput;
+        this.numWords = numWords;
+        this.exampleLength = exampleLength;
+        this.documentMode = documentMode;
+        this.streamMode = streamMode;
+        this.epoch = epoch;
+        this.miniBatchNumber = miniBatchNumber;
+        this.schedulerSeed = schedulerSeed;
+        this.schedulerShuffle = schedulerShuffle;
+        this.schedulerEpoch = schedulerEpoch;
+        this.schedulerCursor = schedulerCursor;
+    }
+
+    /**
+     * Copies the training state. Must be called between minibatches, i.e. not while the network is fitting.
+     * @param net Network being trained
+     * @param iter Iterator the training minibatches come from
+     * @param cursor Number of examples of the current epoch already fitted, e.g. PrefetchingDataSetIterator.cursor()
+     * @param epoch Training epoch, as counted by the training loop
+     * @param miniBatchNumber Minibatches fitted so far
+     */
+    public static Checkpoint snapshot(MultiLayerNetwork net, JapaneseWordIterator iter, int cursor, int epoch, int miniBatchNumber) {
+        EpochScheduler scheduler = iter.getScheduler();
+        Updater updater = net.getUpdater();
+        return new Checkpoint(net.getLayerWiseConfigurations().toJson(), net.params().dup(),
+                updater == null ? null : updater.clone(), iter.getVocabulary(), iter.isIndexInput(),
+                iter.getNumWords(), iter.getExampleLength(), iter.isDocumentMode(), iter.isStreamMode(),
+                epoch, miniBatchNumber, scheduler.getSeed(), scheduler.isShuffle(), scheduler.epoch(), cursor);
+    }
+
+    /**
+     * Why the checkpoint cannot be resumed with the iterator, e.g. because words were added to the corpus since
+     * @return the reason, or null if it can be resumed
+     */
+    public String mismatch(JapaneseWordIterator iter) {
+        if( !vocabulary.equals(iter.getVocabulary()) ) return "Checkpoint vocabulary does not match the corpus";
+        if( numWords != iter.getNumWords() ) return "Corpus has " + iter.getNumWords() + " words, checkpoint was taken with " + numWords;
+        if( indexInput != iter.isIndexInput() ) return "Checkpoint input mode does not match the iterator";
+        if( exampleLength != iter.getExampleLength() ) return "Checkpoint exampleLength " + exampleLength + " does not match the iterator's " + iter.getExampleLength();
+        if( documentMode != iter.isDocumentMode() || streamMode != iter.isStreamMode() ) return "Checkpoint document/stream mode does not match the iterator";
+        return null;
+    }
+
+    /**
+     * Puts the trainer and iterator back at the checkpointed position. The iterator must have been built over the
+     * same corpus (e.g. from the CorpusCache), and must not be wrapped in a PrefetchingDataSetIterator yet.
+     * @throws IllegalStateException if {@link #mismatch(JapaneseWordIterator)} finds a reason not to resume
+     */
+    public void restore(ParallelTrainer trainer, JapaneseWordIterator iter) {
+        String mismatch = mismatch(iter);
+        if( mismatch != null ) throw new IllegalStateException(mismatch);
+        trainer.setState(params, updater);
+        iter.restorePosition(schedulerSeed, schedulerShuffle, schedulerEpoch, schedulerCursor);
+        System.out.println("Resuming from checkpoint: epoch " + epoch + ", example " + schedulerCursor + " of "
+                + iter.numExamples() + ", " + miniBatchNumber + " minibatches fitted");
+    }
+
+    /** Writes the checkpoint under a temporary name and renames it, so a crash never leaves a partial file */
+    public void write(File f) throws IOException {
+        File dir = f.getAbsoluteFile().getParentFile();
+        if( dir != null && !dir.isDirectory() && !dir.mkdirs() ) throw new IOException("Could not create directory: " + dir);
+        File tmp = File.createTempFile(f.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(Magic);
+                out.writeInt(Version);
+                GenerationModel.writeString(out, confJson);
+                out.writeBoolean(indexInput);
+                out.writeInt(vocabulary.size());
+                for( String w : vocabulary ) GenerationModel.writeString(out, w);
+                out.writeInt(numWords);
+                out.writeInt(exampleLength);
+                out.writeBoolean(documentMode);
+                out.writeBoolean(streamMode);
+                out.writeInt(epoch);
+                out.writeInt(miniBatchNumber);
+                out.writeLong(schedulerSeed);
+                out.writeBoolean(schedulerShuffle);
+                out.writeInt(schedulerEpoch);
+                out.writeInt(schedulerCursor);
+                Nd4j.write(params, out);
+
+                ByteArrayOutputStream updaterBytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(updaterBytes)) {
+                    oos.writeObject(updater);
+                }
+                out.writeInt(updaterBytes.size());
+                updaterBytes.writeTo(out);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if( tmp.exists() && !tmp.delete() ) tmp.deleteOnExit();
+        }
+    }
+
+    /** @return the checkpoint, or null if the file does not exist */
+    public static Checkpoint read(File f) throws IOException {
+        if( !f.isFile() ) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+            if( in.readInt() != Magic || in.readInt() != Version ) throw new IOException("Not a checkpoint file: " + f.getAbsolutePath());
+            String confJson = GenerationModel.readString(in);
+            boolean indexInput = in.readBoolean();
+            int vocabSize = in.readInt();
+            List<String> vocabulary = new ArrayList<>(vocabSize);
+            for( int i=0; i<vocabSize; i++ ) vocabulary.add(GenerationModel.readString(in));
+            int numWords = in.readInt();
+            int exampleLength = in.readInt();
+            boolean documentMode = in.readBoolean();
+            boolean streamMode = in.readBoolean();
+            int epoch = in.readInt();
+            int miniBatchNumber = in.readInt();
+            long seed = in.readLong();
+            boolean shuffle = in.readBoolean();
+            int schedulerEpoch = in.readInt();
+            int cursor = in.readInt();
+            INDArray params = Nd4j.read(in);
+
+            byte[] updaterBytes = new byte[in.readInt()];
+            in.readFully(updaterBytes);
+            Updater updater;
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(updaterBytes))) {
+                updater = (Updater) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not read updater state", e);
+            }
+            return new Checkpoint(confJson, params, updater, vocabulary, indexInput, numWords, exampleLength, documentMode,
+                    streamMode, epoch, miniBatchNumber,
+                    seed, shuffle, schedulerEpoch, cursor);
+        }
+    }
+
+    public String getConfJson() {
+        return confJson;
+    }
+
+    /** Training epoch, as counted by the training loop */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getMiniBatchNumber() {
+        return miniBatchNumber;
+    }
+
+    /**
+     * Writes checkpoints on a background thread, so training does not wait for the disk.
+     * At most one checkpoint waits while another is written; if training is faster than the disk, the waiting
+     * one is replaced by the newer one.
+     */
+    public static class Writer {
+        private final File file;
+        private final ThreadPoolExecutor executor;
+        private volatile long written;
+        private volatile long writeNanos;
+
+        public Writer(File file) {
+            this.file = file;
+            this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "CheckpointWriter");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, new ThreadPoolExecutor.DiscardOldestPolicy());
+        }
+
+        public void submit(final Checkpoint checkpoint) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        checkpoint.write(file);
+                        written++;
+                        writeNanos += System.nanoTime() - start;
+                        System.out.println("Wrote checkpoint: epoch " + checkpoint.epoch + ", " + checkpoint.miniBatchNumber
+                                + " minibatches (" + (System.nanoTime() - start) / 1000000 + " ms)");
+                    } catch (IOException e) {
+                        System.out.println("Failed to write checkpoint " + file.getAbsolutePath() + ": " + e);
+                    }
+                }
+            });
+        }
+
+        /** Waits for pending checkpoints to be written and stops the background thread */
+        public void close() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        public long getCheckpointsWritten() {
+            return written;
+        }
+
+        /** Average time to write one checkpoint on the background thread */
+        public double getAverageWriteMillis() {
+            return written == 0 ? 0.0 : writeNanos / 1e6 / written;
+        }
+    }
+}
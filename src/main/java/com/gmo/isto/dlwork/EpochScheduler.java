@@ -0,0 +1,156 @@
+package com.gmo.isto.dlwork;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Order in which example start offsets are visited during an epoch, kept in a primitive int[].
+ * The order of an epoch only depends on the seed and the epoch number, so a run can be repeated or resumed
+ * at any (epoch, cursor) position. An epoch can also be split into disjoint shards for parallel workers.
+ * @author Guangwen Liu
+ */
+public class EpochScheduler {
+    private final int[] offsets;
+    private final int exampleLength;
+    private long seed;
+    private boolean shuffle;
+    private int epoch;
+    private int cursor;
+
+    /** A contiguous, disjoint part of the current epoch, with its own cursor */
+    public class Shard {
+        private final int from;
+        private final int to;
+        private int pos;
+
+        Shard(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.pos = from;
+        }
+
+        public boolean hasNext() {
+            return pos < to;
+        }
+
+        public int next() {
+            if( pos >= to ) throw new NoSuchElementException();
+            return offsets[pos++];
+        }
+
+        public int remaining() {
+            return to - pos;
+        }
+
+        public int cursor() {
+            return pos - from;
+        }
+
+        public int size() {
+            return to - from;
+        }
+    }
+
+    /**
+     * @param numExamples Number of examples per epoch
+     * @param exampleLength Distance between consecutive example start offsets
+     * @param seed Seed of the shuffle
+     * @param shuffle Whether to visit examples in a random order
+     */
+    public EpochScheduler(int numExamples, int exampleLength, long seed, boolean shuffle) {
+        if( numExamples < 0 ) throw new IllegalArgumentException("Invalid numExamples (must be >=0)");
+        this.offsets = new int[numExamples];
+        this.exampleLength = exampleLength;
+        this.seed = seed;
+        this.shuffle = shuffle;
+        startEpoch(0);
+    }
+
+    /** Fills the order of the given epoch and moves the cursor to its start */
+    public void startEpoch(int epoch) {
+        this.epoch = epoch;
+        this.cursor = 0;
+        for( int i=0; i<offsets.length; i++ ) offsets[i] = i * exampleLength;
+        if( shuffle ){
+            //Fisher-Yates, seeded per epoch
+            Random r = new Random(seed + 0x9E3779B97F4A7C15L * epoch);
+            for( int i=offsets.length-1; i>0; i-- ){
+                int j = r.nextInt(i + 1);
+                int tmp = offsets[i];
+                offsets[i] = offsets[j];
+                offsets[j] = tmp;
+            }
+        }
+    }
+
+    /** Moves to the start of the next epoch */
+    public void reset() {
+        startEpoch(epoch + 1);
+    }
+
+    /** Moves to the given position of the given epoch, e.g. to resume a run */
+    public void seek(int epoch, int cursor) {
+        if( cursor < 0 || cursor > offsets.length ) throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        if( epoch != this.epoch ) startEpoch(epoch);
+        this.cursor = cursor;
+    }
+
+    /** Moves to a position saved from a scheduler over the same examples, e.g. in a checkpoint */
+    public void restore(long seed, boolean shuffle, int epoch, int cursor) {
+        this.seed = seed;
+        this.shuffle = shuffle;
+        startEpoch(epoch);
+        seek(epoch, cursor);
+    }
+
+    public boolean hasNext() {
+        return cursor < offsets.length;
+    }
+
+    /** Returns the start offset of the next example */
+    public int next() {
+        if( cursor >= offsets.length ) throw new NoSuchElementException();
+        return offsets[cursor++];
+    }
+
+    public int remaining() {
+        return offsets.length - cursor;
+    }
+
+    /** Number of examples already taken in this epoch */
+    public int cursor() {
+        return cursor;
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    public int epoch() {
+        return epoch;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean isShuffle() {
+        return shuffle;
+    }
+
+    /** Takes effect immediately if no example of the current epoch has been taken yet, otherwise from the next epoch */
+    public void setShuffle(boolean shuffle) {
+        this.shuffle = shuffle;
+        if( cursor == 0 ) startEpoch(epoch);
+    }
+
+    /**
+     * Returns shard index of numShards disjoint, contiguous parts of the current epoch order.
+     * Shard sizes differ by at most one. Shards do not move this scheduler's cursor.
+     */
+    public Shard shard(int index, int numShards) {
+        if( numShards <= 0 || index < 0 || index >= numShards ) throw new IllegalArgumentException("Invalid shard " + index + " of " + numShards);
+        long n = offsets.length;
+        return new Shard((int) (n * index / numShards), (int) (n * (index + 1) / numShards));
+    }
+}
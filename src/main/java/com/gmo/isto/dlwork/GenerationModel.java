@@ -0,0 +1,141 @@
+package com.gmo.isto.dlwork;
+
+import com.gmo.isto.dlwork.tools.BpeModel;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trained network together with the vocabulary it was trained on, i.e. everything needed to generate text.
+ * Saved as a single file: configuration JSON, vocabulary in index order, input mode, subword model if any and parameters.
+ * @author Guangwen Liu
+ */
+public class GenerationModel {
+    private static final int Magic = 0x4e47454d;
+    private static final int Version = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MultiLayerNetwork net;
+    private final List<String> vocabulary;
+    private final Map<String,Integer> wordToIdx;
+    private final boolean indexInput;
+    private BpeModel subwords;
+
+    public GenerationModel(MultiLayerNetwork net, List<String> vocabulary, boolean indexInput) {
+        this.net = net;
+        this.vocabulary = Collections.unmodifiableList(new ArrayList<>(vocabulary));
+        this.wordToIdx = new HashMap<>();
+        for( int i=0; i<vocabulary.size(); i++ ) wordToIdx.put(vocabulary.get(i), i);
+        this.indexInput = indexInput;
+    }
+
+    /** Model of a network trained on the given iterator */
+    public GenerationModel(MultiLayerNetwork net, JapaneseWordIterator iter) {
+        this(net, iter.getVocabulary(), iter.isIndexInput());
+        this.subwords = iter.getSubwordModel();
+    }
+
+    /** Writes the model under a temporary name and renames it, so a running service never reads a partial file */
+    public void save(File f) throws IOException {
+        File dir = f.getAbsoluteFile().getParentFile();
+        if( dir != null && !dir.isDirectory() && !dir.mkdirs() ) throw new IOException("Could not create directory: " + dir);
+        File tmp = File.createTempFile(f.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(Magic);
+                out.writeInt(Version);
+                writeString(out, net.getLayerWiseConfigurations().toJson());
+                out.writeBoolean(indexInput);
+                out.writeInt(vocabulary.size());
+                for( String w : vocabulary ) writeString(out, w);
+                out.writeBoolean(subwords != null);
+                if( subwords != null ) subwords.write(out);
+                Nd4j.write(net.params(), out);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Saved model: " + f.getAbsolutePath());
+        } finally {
+            if( tmp.exists() && !tmp.delete() ) tmp.deleteOnExit();
+        }
+    }
+
+    public static GenerationModel load(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+            int version;
+            if( in.readInt() != Magic || (version = in.readInt()) < 1 || version > Version ) throw new IOException("Not a model file: " + f.getAbsolutePath());
+            MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson(readString(in));
+            boolean indexInput = in.readBoolean();
+            int vocabSize = in.readInt();
+            List<String> vocabulary = new ArrayList<>(vocabSize);
+            for( int i=0; i<vocabSize; i++ ) vocabulary.add(readString(in));
+            BpeModel subwords = version >= 2 && in.readBoolean() ? BpeModel.read(in) : null;
+            INDArray params = Nd4j.read(in);
+
+            MultiLayerNetwork net = new MultiLayerNetwork(conf);
+            net.init();
+            net.setParams(params);
+            GenerationModel model = new GenerationModel(net, vocabulary, indexInput);
+            model.setSubwordModel(subwords);
+            return model;
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    public MultiLayerNetwork getNetwork() {
+        return net;
+    }
+
+    public List<String> getVocabulary() {
+        return vocabulary;
+    }
+
+    public int vocabSize() {
+        return vocabulary.size();
+    }
+
+    /** Index of the word, or -1 if it is not in the vocabulary */
+    public int indexOf(String word) {
+        Integer idx = wordToIdx.get(word);
+        return idx == null ? -1 : idx;
+    }
+
+    public String word(int idx) {
+        return vocabulary.get(idx);
+    }
+
+    /** Subword model the vocabulary units come from, or null for whole words */
+    public BpeModel getSubwordModel() {
+        return subwords;
+    }
+
+    public void setSubwordModel(BpeModel subwords) {
+        this.subwords = subwords;
+    }
+
+    /** True if the network takes word indexes (embedding layer), false for one-hot vectors */
+    public boolean isIndexInput() {
+        return indexInput;
+    }
+}
@@ -0,0 +1,410 @@
+package com.gmo.isto.dlwork;
+
+import com.gmo.isto.dlwork.tools.JapaneseTokenizerFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.layers.recurrent.GravesLSTM;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running local HTTP service that generates text with a trained {@link GenerationModel}.
+ *
+ * Concurrent requests are batched continuously: a single generation thread keeps one batch of active requests and
+ * advances all of them with one rnnTimeStep call per time step. New requests join the batch at the next time step
+ * (starting from an empty RNN state) and finished ones leave it, while the RNN state of the others is kept.
+ * A request first feeds its prompt words one per time step, then samples one word per time step.
+ *
+ * Endpoints:
+ *   GET  /generate?prompt=...&words=100     or     POST /generate?words=100 with the prompt as UTF-8 body
+ *   GET  /stats
+ *
+ * Usage: GenerationServer modelFile [port] [maxBatchSize]
+ * @author Guangwen Liu
+ */
+public class GenerationServer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final int DefaultPort = 8090;
+    public static final int MaxWordsPerRequest = 2000;
+
+    private final GenerationModel model;
+    private final MultiLayerNetwork net;
+    private final WordSampler sampler;
+    private final int maxBatchSize;
+    private final TokenizerFactory tokenizerFactory;
+    private final Random rng;
+    //Layers whose state rnnTimeStep keeps between calls
+    private final int[] recurrentLayers;
+
+    private final BlockingQueue<Generation> pending = new LinkedBlockingQueue<>();
+    private final List<Generation> active = new ArrayList<>();
+    private Thread generator;
+    private volatile boolean running;
+    //Held while queueing a request and while the generation thread completes the queue on exit, so no request is left waiting
+    private final Object queueLock = new Object();
+    private HttpServer http;
+    private ExecutorService httpExecutor;
+
+    private volatile long steps;
+    private volatile long batchSizeSum;
+    private volatile long completed;
+
+    /** One generation request, from its prompt to the last sampled word */
+    public static class Generation {
+        private final int[] prompt;
+        private final int numWords;
+        private final StringBuilder text = new StringBuilder();
+        private final CountDownLatch done = new CountDownLatch(1);
+        //Number of words fed into the network so far
+        private int fed;
+        private int generated;
+        private int lastWord;
+        private volatile Throwable error;
+
+        Generation(int[] prompt, int numWords) {
+            this.prompt = prompt;
+            this.numWords = numWords;
+        }
+
+        /** Next input word: the prompt first, then the previously sampled word */
+        int nextInput() {
+            return fed < prompt.length ? prompt[fed] : lastWord;
+        }
+
+        /** True once the whole prompt has been fed, i.e. the network output is a prediction to sample from */
+        boolean sampling() {
+            return fed >= prompt.length;
+        }
+
+        boolean finished() {
+            return generated >= numWords;
+        }
+
+        /** Waits for the generated text */
+        public String get() throws InterruptedException {
+            done.await();
+            if( error != null ) throw new RuntimeException("Generation failed", error);
+            return text.toString();
+        }
+    }
+
+    /**
+     * @param model Trained network and vocabulary
+     * @param maxBatchSize Maximum number of requests advanced together; further requests wait for a free slot
+     * @param sampler Draws words from the network output, with the temperature/top-k/top-p settings of the service
+     */
+    public GenerationServer(GenerationModel model, int maxBatchSize, WordSampler sampler, Random rng) {
+        if( maxBatchSize <= 0 ) throw new IllegalArgumentException("Invalid maxBatchSize (must be >0)");
+        this.model = model;
+        this.net = model.getNetwork();
+        this.sampler = sampler;
+        this.maxBatchSize = maxBatchSize;
+        this.rng = rng;
+        JapaneseTokenizerFactory factory = new JapaneseTokenizerFactory();
+        factory.setSubwordModel(model.getSubwordModel());	//Prompts are split into the same units as the training corpus
+        this.tokenizerFactory = factory;
+
+        Layer[] layers = net.getLayers();
+        int n = 0;
+        int[] rec = new int[layers.length];
+        for( int i=0; i<layers.length; i++ ) if( layers[i] instanceof GravesLSTM ) rec[n++] = i;
+        this.recurrentLayers = Arrays.copyOf(rec, n);
+    }
+
+    /** Starts the generation thread and the HTTP server on the given local port */
+    public void start(int port) throws IOException {
+        running = true;
+        generator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                generationLoop();
+            }
+        }, "GenerationLoop");
+        generator.setDaemon(true);
+        generator.start();
+
+        http = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        http.createContext("/generate", new GenerateHandler());
+        http.createContext("/stats", new StatsHandler());
+        httpExecutor = Executors.newCachedThreadPool();
+        http.setExecutor(httpExecutor);
+        http.start();
+        System.out.println("Generation service started on port " + port + ", max batch size " + maxBatchSize);
+    }
+
+    public void stop() {
+        if( http != null ) http.stop(0);
+        if( httpExecutor != null ) httpExecutor.shutdown();
+        running = false;
+        if( generator != null ) generator.interrupt();
+    }
+
+    /**
+     * Queues a generation request. Prompt words that are not in the vocabulary are skipped; with no known
+     * prompt word, generation starts from a random word.
+     */
+    public Generation submit(String prompt, int numWords) {
+        if( !running ) throw new IllegalStateException("Generation service is not running");
+        if( numWords <= 0 || numWords > MaxWordsPerRequest ) throw new IllegalArgumentException("Invalid number of words: " + numWords);
+        List<Integer> ids = new ArrayList<>();
+        if( prompt != null && !prompt.isEmpty() ){
+            Tokenizer t = tokenizerFactory.create(prompt);
+            while( t.hasMoreTokens() ){
+                int idx = model.indexOf(t.nextToken());
+                if( idx >= 0 ) ids.add(idx);
+            }
+        }
+        int[] promptIds;
+        if( ids.isEmpty() ){
+            promptIds = new int[]{rng.nextInt(model.vocabSize())};
+        } else {
+            promptIds = new int[ids.size()];
+            for( int i=0; i<promptIds.length; i++ ) promptIds[i] = ids.get(i);
+        }
+
+        Generation g = new Generation(promptIds, numWords);
+        for( int idx : promptIds ) g.text.append(model.word(idx));
+        g.text.append(":\n");
+        synchronized(queueLock){
+            if( !running ) throw new IllegalStateException("Generation service is not running");
+            pending.add(g);
+        }
+        return g;
+    }
+
+    private void generationLoop() {
+        INDArray input = null;
+        int[] inputWords = null;	//Word set in each row of the one-hot input, to clear it at the next step
+        try {
+            while( running ){
+                //Admit waiting requests; block only when there is nothing to advance
+                boolean changed = false;
+                List<Generation> joined = new ArrayList<>();
+                if( active.isEmpty() ){
+                    Generation g = pending.poll(1, TimeUnit.SECONDS);
+                    if( g == null ) continue;
+                    joined.add(g);
+                }
+                pending.drainTo(joined, maxBatchSize - active.size() - joined.size());
+                if( !joined.isEmpty() ){
+                    joinBatch(joined);
+                    changed = true;
+                }
+
+                int n = active.size();
+                if( changed || input == null ){
+                    input = model.isIndexInput() ? Nd4j.zeros(n, 1, 1) : Nd4j.zeros(n, model.vocabSize());
+                    inputWords = new int[n];
+                    Arrays.fill(inputWords, -1);
+                }
+                for( int s=0; s<n; s++ ){
+                    Generation g = active.get(s);
+                    int word = g.nextInput();
+                    if( model.isIndexInput() ) input.putScalar(new int[]{s, 0, 0}, word);
+                    else {
+                        if( inputWords[s] >= 0 ) input.putScalar(s, inputWords[s], 0.0);
+                        input.putScalar(s, word, 1.0);
+                    }
+                    inputWords[s] = word;
+                    g.fed++;
+                }
+
+                INDArray output = net.rnnTimeStep(input);	//One time step for all active requests
+                steps++;
+                batchSizeSum += n;
+
+                boolean[] leaving = null;
+                for( int s=0; s<n; s++ ){
+                    Generation g = active.get(s);
+                    if( !g.sampling() ) continue;
+                    int idx = sampler.sample(output, s);
+                    g.lastWord = idx;
+                    g.generated++;
+                    g.text.append(model.word(idx));
+                    if( g.finished() ){
+                        if( leaving == null ) leaving = new boolean[n];
+                        leaving[s] = true;
+                    }
+                }
+                if( leaving != null ){
+                    leaveBatch(leaving);
+                    input = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        } catch (Throwable t) {
+            System.out.println("Generation failed: " + t);
+            for( Generation g : active ) g.error = t;
+            for( Generation g : pending ) g.error = t;
+        } finally {
+            synchronized(queueLock){
+                running = false;
+                //Requests cut off by stop() fail instead of returning partial text
+                Throwable stopped = new IllegalStateException("Generation service stopped");
+                for( Generation g : active ){
+                    if( g.error == null ) g.error = stopped;
+                    g.done.countDown();
+                }
+                for( Generation g : pending ){
+                    if( g.error == null ) g.error = stopped;
+                    g.done.countDown();
+                }
+                pending.clear();
+            }
+        }
+    }
+
+    //Adds requests at the end of the batch, with a zero RNN state
+    private void joinBatch(List<Generation> joined) {
+        int oldN = active.size();
+        int[] rows = new int[oldN + joined.size()];
+        for( int i=0; i<rows.length; i++ ) rows[i] = i < oldN ? i : -1;
+        active.addAll(joined);
+        remapState(oldN, rows);
+    }
+
+    //Removes finished requests from the batch and keeps the RNN state of the others
+    private void leaveBatch(boolean[] leaving) {
+        int oldN = active.size();
+        int[] rows = new int[oldN];
+        int n = 0;
+        List<Generation> remaining = new ArrayList<>(oldN);
+        for( int s=0; s<oldN; s++ ){
+            Generation g = active.get(s);
+            if( leaving[s] ){
+                completed++;
+                g.done.countDown();
+            } else {
+                rows[n++] = s;
+                remaining.add(g);
+            }
+        }
+        active.clear();
+        active.addAll(remaining);
+        remapState(oldN, Arrays.copyOf(rows, n));
+    }
+
+    /**
+     * Rebuilds the stored RNN state for a new batch composition.
+     * @param oldN Batch size of the stored state
+     * @param rows For each row of the new batch, its row in the old batch, or -1 for a new request
+     */
+    private void remapState(int oldN, int[] rows) {
+        if( rows.length == 0 || oldN == 0 ){
+            net.rnnClearPreviousState();	//Nothing to keep; rnnTimeStep starts from a zero state
+            return;
+        }
+        for( int l : recurrentLayers ){
+            Map<String,INDArray> state = net.rnnGetPreviousState(l);
+            if( state == null || state.isEmpty() ) continue;
+            Map<String,INDArray> newState = new HashMap<>();
+            for( Map.Entry<String,INDArray> e : state.entrySet() ){
+                INDArray old = e.getValue();
+                INDArray next = Nd4j.zeros(rows.length, old.size(1));
+                for( int r=0; r<rows.length; r++ ){
+                    if( rows[r] >= 0 ) next.getRow(r).assign(old.getRow(rows[r]));
+                }
+                newState.put(e.getKey(), next);
+            }
+            net.rnnSetPreviousState(l, newState);
+        }
+    }
+
+    /** Average number of requests advanced per rnnTimeStep call */
+    public double getAverageBatchSize() {
+        return steps == 0 ? 0.0 : (double) batchSizeSum / steps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GenerationServer: %d requests completed, %d active, %d waiting, %d time steps, avg batch size %.2f/%d",
+                completed, active.size(), pending.size(), steps, getAverageBatchSize(), maxBatchSize);
+    }
+
+    private class GenerateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Map<String,String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String prompt = params.get("prompt");
+                if( "POST".equals(exchange.getRequestMethod()) ) prompt = readBody(exchange.getRequestBody());
+                int numWords = params.containsKey("words") ? Integer.parseInt(params.get("words")) : 100;
+                respond(exchange, 200, submit(prompt, numWords).get());
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "Interrupted");
+            } catch (RuntimeException e) {
+                respond(exchange, 500, String.valueOf(e.getCause() != null ? e.getCause() : e));
+            }
+        }
+    }
+
+    private class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            respond(exchange, 200, GenerationServer.this.toString());
+        }
+    }
+
+    private static Map<String,String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String,String> params = new HashMap<>();
+        if( query == null ) return params;
+        for( String pair : query.split("&") ){
+            int eq = pair.indexOf('=');
+            if( eq <= 0 ) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while( (n = in.read(buf)) > 0 ) bytes.write(buf, 0, n);
+        return new String(bytes.toByteArray(), UTF8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if( args.length < 1 ){
+            System.out.println("Usage: GenerationServer modelFile [port] [maxBatchSize]");
+            return;
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DefaultPort;
+        int maxBatchSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+        GenerationModel model = GenerationModel.load(new File(args[0]));
+        Random rng = new Random();
+        GenerationServer server = new GenerationServer(model, maxBatchSize, new WordSampler(model.vocabSize(), rng), rng);
+        server.start(port);
+    }
+}
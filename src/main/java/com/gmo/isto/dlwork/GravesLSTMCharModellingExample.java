@@ -1,7 +1,14 @@
 package com.gmo.isto.dlwork;
 
+import com.gmo.isto.dlwork.tools.BpeModel;
+import com.gmo.isto.dlwork.tools.CorpusCache;
+import com.gmo.isto.dlwork.tools.CorpusStore;
 import com.gmo.isto.dlwork.tools.DocItem;
+import com.gmo.isto.dlwork.tools.JapaneseTokenizerFactory;
 import com.gmo.isto.dlwork.tools.LoadDataFromDB;
+import com.gmo.isto.dlwork.tools.NearDuplicateFilter;
+import com.gmo.isto.dlwork.tools.SqliteDocIterator;
+import com.gmo.isto.dlwork.tools.TokenizedCorpus;
 import org.apache.commons.io.FileUtils;
 import org.deeplearning4j.nn.api.Layer;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
@@ -9,15 +16,17 @@ import org.deeplearning4j.nn.conf.BackpropType;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.EmbeddingLayer;
 import org.deeplearning4j.nn.conf.layers.GravesLSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToRnnPreProcessor;
+import org.deeplearning4j.nn.conf.preprocessor.RnnToFeedForwardPreProcessor;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.ui.UiServer;
 import org.deeplearning4j.ui.weights.HistogramIterationListener;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
 
@@ -25,6 +34,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
@@ -60,43 +70,84 @@ public class GravesLSTMCharModellingExample {
         int generateSamplesEveryNMinibatches = 4;  //How frequently to generate samples from the network? 1000 characters / 50 tbptt length: 20 parameter updates per minibatch
 		int nSamplesToGenerate = 4;					//Number of samples to generate after each training epoch
 		int nWordsToSample = 200;				//Length of each sample to generate
+		boolean useEmbedding = true;				//Feed word indexes into an embedding layer instead of one-hot vectors
+		int embeddingSize = 128;					//Size of each word vector in the embedding layer
+		int maxVocabSize = 16000;					//Most frequent words kept, others become <UNK>; 0 keeps all words seen more than MinWordFreq times
+		int bpeMerges = 8000;						//Split words into subword units learned with this many BPE merges; 0 for whole words
+		double dedupThreshold = 0.8;				//Drop articles this similar (estimated Jaccard over character shingles) to an earlier one; 0 keeps all
+		boolean incrementalCorpus = false;			//Keep a token store and only tokenize articles added since the last run
+		boolean documentExamples = false;			//Keep examples inside one article, padded and masked, batched by length
+		boolean statefulStreams = false;			//Read each minibatch slot as one contiguous stream and carry the LSTM state between minibatches (1 worker only)
+		int prefetchMinibatches = 4;				//Number of minibatches vectorized ahead on a background thread
+		int numWorkers = 1;							//Number of data-parallel network replicas, each fitting on its own thread
+		int averagingFrequency = 4;					//Minibatches each replica fits before parameters are averaged (ignored for 1 worker)
+		boolean reportScaling = false;				//Measure throughput for 1..numWorkers replicas before training
+		File modelFile = new File(System.getProperty("java.io.tmpdir"), "newsCreator-model.bin");	//Trained model for GenerationServer
+		int checkpointEveryNMinibatches = 50;		//How often to save a checkpoint; a restarted run resumes from the last one
+		File checkpointFile = new File(System.getProperty("java.io.tmpdir"), "newsCreator-checkpoint.bin");
+		File telemetryFile = new File(System.getProperty("java.io.tmpdir"), "newsCreator-telemetry/telemetry.csv");	//One row per training round; also shown over JMX
 		//String generationInitialization = null;		//Optional character initialization; a random character is used if null
 		// Above is Used to 'prime' the LSTM with a character sequence to continue/complete.
 		// Initialization characters must all be in com.gmo.isto.dlwork.CharacterIterator.getMinimalCharacterSet() by default
 		Random rng = new Random(12345);
 
+		if( statefulStreams ) exampleLength = tbpttLength;	//The carried state provides the long context, so examples can be short
 		UiServer server = UiServer.getInstance();
 		System.out.println("Started on port " + server.getPort());
 
 		//Get a DataSetIterator that handles vectorization of text into something we can use to train
 		// our GravesLSTM network.
 		//CharacterIterator iter = getShakespeareIterator(miniBatchSize,exampleLength);
-		JapaneseWordIterator iter = getNewsIterator(miniBatchSize,exampleLength);
+		//JapaneseCharacterIterator iter = getNewsCharacterIterator(miniBatchSize,exampleLength,4000);
+		JapaneseWordIterator iter = incrementalCorpus
+				? getIncrementalNewsIterator(miniBatchSize,exampleLength,maxVocabSize,bpeMerges,dedupThreshold)
+				: getNewsIterator(miniBatchSize,exampleLength,maxVocabSize,bpeMerges,dedupThreshold);
+		iter.setIndexInput(useEmbedding);
+		iter.setShuffle(!statefulStreams);	//Seeded per epoch, so runs stay repeatable
+		iter.setDocumentMode(documentExamples);
+		iter.setStreamMode(statefulStreams);
+		if( numWorkers == 1 ) averagingFrequency = 1;
+		//Queued minibatches, plus the one being built and the ones being fitted in one round of training
+		iter.setBufferPoolSize(prefetchMinibatches + 1 + numWorkers * averagingFrequency);
 		int nOut = iter.totalOutcomes();
 
-		//Set up network configuration:
-		MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
-			.optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(3)
-			.learningRate(0.01)
-			.rmsDecay(0.95)
-			.seed(12345)
-			.regularization(true)
-			.l2(0.001)
-            .weightInit(WeightInit.XAVIER)
-            .updater(Updater.RMSPROP)
-			.list()
-			.layer(0, new GravesLSTM.Builder().nIn(iter.inputColumns()).nOut(lstmLayerSize)
-					.activation("tanh").build())
-			.layer(1, new GravesLSTM.Builder().nIn(lstmLayerSize).nOut(lstmLayerSize)
-					.activation("tanh").build())
-			.layer(2, new RnnOutputLayer.Builder(LossFunction.MCXENT).activation("softmax")        //MCXENT + softmax for classification
-					.nIn(lstmLayerSize).nOut(nOut).build())
-            .backpropType(BackpropType.TruncatedBPTT).tBPTTForwardLength(tbpttLength).tBPTTBackwardLength(tbpttLength)
-			.pretrain(false).backprop(true)
-			.build();
+		//Set up network configuration, or continue a previous run from its checkpoint:
+		Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+		String mismatch = checkpoint == null ? null : checkpoint.mismatch(iter);
+		if( mismatch != null ){
+			//E.g. the incremental store added articles since: the saved position is meaningless in the new corpus
+			System.out.println("Not resuming from " + checkpointFile.getAbsolutePath() + ": " + mismatch + "; starting a new run");
+			checkpoint = null;
+		}
+		MultiLayerConfiguration conf;
+		if( checkpoint != null ) conf = MultiLayerConfiguration.fromJson(checkpoint.getConfJson());
+		else conf = useEmbedding
+				? getEmbeddingConfiguration(iter.vocabSize(), embeddingSize, lstmLayerSize, nOut, tbpttLength)
+				: getOneHotConfiguration(iter.inputColumns(), lstmLayerSize, nOut, tbpttLength);
+
+		if( reportScaling && checkpoint == null ){
+			PrefetchingDataSetIterator scalingIter = new PrefetchingDataSetIterator(iter, prefetchMinibatches);
+			ParallelTrainer.reportScaling(conf, scalingIter, numWorkers, averagingFrequency, 50);
+			scalingIter.shutdown();
+			iter.getScheduler().startEpoch(0);
+		}
 
-		MultiLayerNetwork net = new MultiLayerNetwork(conf);
-		net.init();
+		ParallelTrainer trainer = new ParallelTrainer(conf, numWorkers, averagingFrequency);
+		TrainingTelemetry telemetry = new TrainingTelemetry(telemetryFile, 10 * 1024 * 1024, 5);
+		telemetry.registerMBean();
+		trainer.setTelemetry(telemetry);
+		trainer.setCarryRnnState(statefulStreams);
+		int firstEpoch = 0;
+		int miniBatchNumber = 0;
+		if( checkpoint != null ){
+			checkpoint.restore(trainer, iter);
+			firstEpoch = checkpoint.getEpoch();
+			miniBatchNumber = checkpoint.getMiniBatchNumber();
+		}
+		PrefetchingDataSetIterator trainIter = new PrefetchingDataSetIterator(iter, prefetchMinibatches);
+		Checkpoint.Writer checkpointWriter = new Checkpoint.Writer(checkpointFile);
+		MultiLayerNetwork net = trainer.getNetwork();
+		WordSampler sampler = new WordSampler(nOut, rng);
 		net.setListeners(new ScoreIterationListener(1));
 		net.setListeners(new HistogramIterationListener(1));
 
@@ -112,31 +163,103 @@ public class GravesLSTMCharModellingExample {
 		System.out.println("Total number of network parameters: " + totalNumParams);
 
 		//Do training, and then generate and print samples from network
-        int miniBatchNumber = 0;
-		for( int i=0; i<numEpochs; i++ ){
+		for( int i=firstEpoch; i<numEpochs; i++ ){
 			System.out.println("Starting Epoch: " + (i+1));
-            while(iter.hasNext()){
-                DataSet ds = iter.next();
-                net.fit(ds);
-                if(++miniBatchNumber % generateSamplesEveryNMinibatches == 0){
+            int nFitted;
+            while((nFitted = trainer.fitRound(trainIter)) > 0){
+                int before = miniBatchNumber;
+                miniBatchNumber += nFitted;
+                if(miniBatchNumber / checkpointEveryNMinibatches > before / checkpointEveryNMinibatches){
+                    checkpointWriter.submit(Checkpoint.snapshot(net, iter, trainIter.cursor(), i, miniBatchNumber));
+                }
+                if(miniBatchNumber / generateSamplesEveryNMinibatches > before / generateSamplesEveryNMinibatches){
                     System.out.println("--------------------");
                     System.out.println("Completed " + miniBatchNumber + " minibatches of size " + miniBatchSize + "x" + exampleLength + " characters" );
                     //System.out.println("Sampling characters from network given initialization \"" + (generationInitialization == null ? "" : generationInitialization) + "\"");
-                    String[] samples = sampleWordsFromNetwork(net,iter,rng,nWordsToSample,nSamplesToGenerate);
+                    long samplingStart = System.nanoTime();
+                    String[] samples = sampleWordsFromNetwork(net,iter,sampler,nWordsToSample,nSamplesToGenerate);
+                    telemetry.addSampling(System.nanoTime() - samplingStart);
                     for( int j=0; j<samples.length; j++ ){
                         System.out.println("----- Sample " + j + " -----");
                         System.out.println(samples[j]);
                         System.out.println();
                     }
                 }
+                telemetry.endRound(i);
             }
 
-			iter.reset();	//Reset iterator for another epoch
+			System.out.println(trainIter);
+			System.out.println(trainer);
+			System.out.println(telemetry);
+			trainIter.resetStats();
+			trainer.resetStats();
+			trainIter.reset();	//Reset iterator for another epoch
+			trainer.resetRnnState();	//The streams start again
+			checkpointWriter.submit(Checkpoint.snapshot(net, iter, 0, i + 1, miniBatchNumber));
 		}
+		trainIter.shutdown();
+		trainer.shutdown();
+		checkpointWriter.close();
+		telemetry.close();
+		new GenerationModel(net, iter).save(modelFile);
 
 		System.out.println("\n\nExample complete");
 	}
 
+	/** Network for one-hot word input: two GravesLSTM layers and a softmax output layer */
+	private static MultiLayerConfiguration getOneHotConfiguration(int nIn, int lstmLayerSize, int nOut, int tbpttLength){
+		return new NeuralNetConfiguration.Builder()
+			.optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(3)
+			.learningRate(0.01)
+			.rmsDecay(0.95)
+			.seed(12345)
+			.regularization(true)
+			.l2(0.001)
+            .weightInit(WeightInit.XAVIER)
+            .updater(Updater.RMSPROP)
+			.list()
+			.layer(0, new GravesLSTM.Builder().nIn(nIn).nOut(lstmLayerSize)
+					.activation("tanh").build())
+			.layer(1, new GravesLSTM.Builder().nIn(lstmLayerSize).nOut(lstmLayerSize)
+					.activation("tanh").build())
+			.layer(2, new RnnOutputLayer.Builder(LossFunction.MCXENT).activation("softmax")        //MCXENT + softmax for classification
+					.nIn(lstmLayerSize).nOut(nOut).build())
+            .backpropType(BackpropType.TruncatedBPTT).tBPTTForwardLength(tbpttLength).tBPTTBackwardLength(tbpttLength)
+			.pretrain(false).backprop(true)
+			.build();
+	}
+
+	/** Network for word index input (see JapaneseWordIterator.setIndexInput): an embedding layer looks up a
+	 * dense vector per word, so the first layer costs O(embeddingSize) per time step instead of O(vocabSize).
+	 * The preprocessors reshape [miniBatch, 1, time] indexes to [miniBatch*time, 1] for the embedding layer and back.
+	 */
+	private static MultiLayerConfiguration getEmbeddingConfiguration(int vocabSize, int embeddingSize, int lstmLayerSize,
+																	 int nOut, int tbpttLength){
+		return new NeuralNetConfiguration.Builder()
+			.optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(3)
+			.learningRate(0.01)
+			.rmsDecay(0.95)
+			.seed(12345)
+			.regularization(true)
+			.l2(0.001)
+            .weightInit(WeightInit.XAVIER)
+            .updater(Updater.RMSPROP)
+			.list()
+			.layer(0, new EmbeddingLayer.Builder().nIn(vocabSize).nOut(embeddingSize)
+					.activation("identity").build())
+			.layer(1, new GravesLSTM.Builder().nIn(embeddingSize).nOut(lstmLayerSize)
+					.activation("tanh").build())
+			.layer(2, new GravesLSTM.Builder().nIn(lstmLayerSize).nOut(lstmLayerSize)
+					.activation("tanh").build())
+			.layer(3, new RnnOutputLayer.Builder(LossFunction.MCXENT).activation("softmax")        //MCXENT + softmax for classification
+					.nIn(lstmLayerSize).nOut(nOut).build())
+			.inputPreProcessor(0, new RnnToFeedForwardPreProcessor())
+			.inputPreProcessor(1, new FeedForwardToRnnPreProcessor())
+            .backpropType(BackpropType.TruncatedBPTT).tBPTTForwardLength(tbpttLength).tBPTTBackwardLength(tbpttLength)
+			.pretrain(false).backprop(true)
+			.build();
+	}
+
 	/** Downloads Shakespeare training data and stores it locally (temp directory). Then set up and return a simple
 	 * DataSetIterator that does vectorization based on the text.
 	 * @param miniBatchSize Number of text segments in each training mini-batch
@@ -164,14 +287,120 @@ public class GravesLSTMCharModellingExample {
 				miniBatchSize, sequenceLength, validCharacters, new Random(12345));
 	}
 
-	private static JapaneseWordIterator getNewsIterator(int miniBatchSize, int sequenceLength) throws Exception{
-		String inputSql = "select id, post_content from xb_corpus where post_length < 2000 limit 150";
+	/**
+	 * Character-level alternative to getNewsIterator: streams the news articles once and keeps the
+	 * (maxCharacters - 1) most frequent characters, the rest becoming the unknown character.
+	 * @param maxCharacters Size of the softmax, e.g. 3000-5000 for Japanese
+	 */
+	private static JapaneseCharacterIterator getNewsCharacterIterator(int miniBatchSize, int sequenceLength,
+																	  int maxCharacters) throws Exception{
+		String inputSql = "select id, post_content from xb_corpus where post_length < 2000";
+		int parallelism = Runtime.getRuntime().availableProcessors();	//Counting threads; the character set does not depend on this
+		SqliteDocIterator docs = LoadDataFromDB.streamDataFromSqlite(null, inputSql, LoadDataFromDB.defaultFetchSize);
+		try {
+			return new JapaneseCharacterIterator(docs, miniBatchSize, sequenceLength, maxCharacters, new Random(12345), parallelism);
+		} finally {
+			docs.close();
+		}
+	}
+
+	/** Streams news articles from the local SQLite database and sets up a word-level DataSetIterator over them.
+	 * Rows are tokenized as they are fetched, so the whole table can be used. The tokenized corpus is cached
+	 * in the temp directory, and later runs over the same documents memory-map it instead of tokenizing again.
+	 * @param miniBatchSize Number of text segments in each training mini-batch
+	 * @param sequenceLength Number of words in each text segment.
+	 * @param maxVocabSize Vocabulary size limit, 0 for none (see JapaneseWordIterator)
+	 * @param bpeMerges If > 0, a BPE model with this many merges is trained on the word frequencies and the words are
+	 *                  split into its subword units; the model is cached next to the corpus
+	 */
+	private static JapaneseWordIterator getNewsIterator(int miniBatchSize, int sequenceLength, int maxVocabSize,
+														int bpeMerges, double dedupThreshold) throws Exception{
+		String inputSql = "select id, post_content from xb_corpus where post_length < 2000";
 		//String inputSql = "select id, post_title from xb_corpus where post_length < 10000";
 
-		List<DocItem> rs = LoadDataFromDB.loadDataFromSqlite(null, inputSql);
-		return new JapaneseWordIterator(rs, miniBatchSize, sequenceLength, new Random(12345));
+		File cacheDir = new File(System.getProperty("java.io.tmpdir"), "newsCreator-corpus");
+		CorpusCache cache = new CorpusCache(cacheDir);
+		List<String> docIds = LoadDataFromDB.loadDocIds(null, inputSql);
+		int parallelism = Runtime.getRuntime().availableProcessors();	//Tokenizer threads; the vocabulary does not depend on this
+		String dedupConfig = dedupThreshold > 0 ? ";dedup=" + NearDuplicateFilter.describe(dedupThreshold) : "";
+		String tokenizerConfig = new JapaneseTokenizerFactory().describe() + (bpeMerges > 0 ? ";bpeMerges=" + bpeMerges : "") + dedupConfig;
+		String cacheKey = CorpusCache.key(inputSql, docIds, tokenizerConfig, JapaneseWordIterator.MinWordFreq, maxVocabSize);
+		File bpeFile = new File(cacheDir, "bpe-" + cacheKey + ".bin");
+		CorpusCache.Entry cached = cache.load(cacheKey);
+		BpeModel bpe = bpeMerges > 0 ? BpeModel.load(bpeFile) : null;
+		if( cached != null && (bpeMerges == 0 || bpe != null) ){
+			System.out.println("Using cached corpus " + cacheKey);
+			JapaneseWordIterator iter = new JapaneseWordIterator(cached, miniBatchSize, sequenceLength, new Random(12345));
+			iter.setSubwordModel(bpe);
+			return iter;
+		}
+
+		SqliteDocIterator docs = LoadDataFromDB.streamDataFromSqlite(null, inputSql, LoadDataFromDB.defaultFetchSize);
+		NearDuplicateFilter dedup = dedupThreshold > 0 ? new NearDuplicateFilter(docs, dedupThreshold, parallelism) : null;
+		TokenizedCorpus corpus;
+		try {
+			corpus = JapaneseWordIterator.tokenize(dedup != null ? dedup : docs, parallelism);
+		} finally {
+			if( dedup != null ) dedup.close();
+			docs.close();
+		}
+		if( dedup != null ){
+			System.out.println(dedup + ", about " + dedup.estimateRemovedTokens(corpus.size()) + " tokens");
+		}
+		if( bpeMerges > 0 ){
+			bpe = BpeModel.train(corpus.getWordFrequencies(), bpeMerges);
+			bpe.save(bpeFile);
+			corpus = corpus.toSubwords(bpe);
+		}
+		JapaneseWordIterator iter = new JapaneseWordIterator(corpus, miniBatchSize, sequenceLength, new Random(12345), maxVocabSize);
+		iter.setSubwordModel(bpe);
+		iter.writeTo(cache, cacheKey);
+		return iter;
 	}
 
+	/**
+	 * As getNewsIterator, but through a {@link CorpusStore}: only articles with a higher id than the last run's
+	 * are read and tokenized, and appended to the stored tokens. Once new articles were added, the corpus differs
+	 * from the one a checkpoint was taken in, so training does not resume from it but starts a new run.
+	 * Near-duplicates are only looked for among the new articles, and the BPE model is learned on the first run and
+	 * then kept.
+	 */
+	private static JapaneseWordIterator getIncrementalNewsIterator(int miniBatchSize, int sequenceLength, int maxVocabSize,
+																   int bpeMerges, double dedupThreshold) throws Exception{
+		String inputSql = "select id, post_content from xb_corpus where post_length < 2000";
+		File storeDir = new File(System.getProperty("java.io.tmpdir"), "newsCreator-store");
+		String dedupConfig = dedupThreshold > 0 ? ";dedup=" + NearDuplicateFilter.describe(dedupThreshold) : "";
+		//The stored vocabulary is over the subword units, so another BPE setting needs a new store
+		String storeConfig = new JapaneseTokenizerFactory().describe() + (bpeMerges > 0 ? ";bpeMerges=" + bpeMerges : "") + dedupConfig;
+		CorpusStore store = CorpusStore.open(storeDir, inputSql, storeConfig, JapaneseWordIterator.MinWordFreq, maxVocabSize);
+
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		SqliteDocIterator docs = LoadDataFromDB.streamDataFromSqlite(null, store.getRefreshQuery(), LoadDataFromDB.defaultFetchSize);
+		Iterator<DocItem> newDocs = store.trackIds(docs);
+		NearDuplicateFilter dedup = dedupThreshold > 0 ? new NearDuplicateFilter(newDocs, dedupThreshold, parallelism) : null;
+		TokenizedCorpus corpus;
+		try {
+			corpus = JapaneseWordIterator.tokenize(dedup != null ? dedup : newDocs, parallelism);
+		} finally {
+			if( dedup != null ) dedup.close();
+			docs.close();
+		}
+		if( dedup != null ) System.out.println(dedup);
+		store.append(corpus);
+
+		BpeModel bpe = null;
+		if( bpeMerges > 0 ){
+			File bpeFile = new File(storeDir, "bpe-" + bpeMerges + ".bin");
+			bpe = BpeModel.load(bpeFile);
+			if( bpe == null ){
+				bpe = BpeModel.train(store.getCorpus().getWordFrequencies(), bpeMerges);
+				bpe.save(bpeFile);
+			}
+		}
+		JapaneseWordIterator iter = new JapaneseWordIterator(store.toEntry(bpe), miniBatchSize, sequenceLength, new Random(12345));
+		iter.setSubwordModel(bpe);
+		return iter;
+	}
 
 	/** Generate a sample from the network, given an (optional, possibly null) initialization. Initialization
 	 * can be used to 'prime' the RNN with a sequence you want to extend/continue.<br>
@@ -179,9 +408,11 @@ public class GravesLSTMCharModellingExample {
 	 * @param wordsToSample Number of characters to sample from network (excluding initialization)
 	 * @param net MultiLayerNetwork with one or more GravesLSTM/RNN layers and a softmax output layer
 	 * @param iter com.gmo.isto.dlwork.CharacterIterator. Used for going from indexes back to characters
+	 * @param sampler Draws word indexes from the softmax output
+	 * Subword units are appended as they are sampled: their concatenation is the surface text (see BpeModel.decode)
 	 */
-	private static String[] sampleWordsFromNetwork(MultiLayerNetwork net,
-												   JapaneseWordIterator iter, Random rng, int wordsToSample, int numSamples ){
+	static String[] sampleWordsFromNetwork(MultiLayerNetwork net,
+										   JapaneseWordIterator iter, WordSampler sampler, int wordsToSample, int numSamples ){
 		//Set up initialization. If no initialization: use a random character
 		int N = 1;
 		String []initialization = new String[N];
@@ -190,11 +421,13 @@ public class GravesLSTMCharModellingExample {
 		}
 
 		//Create input for initialization
+		boolean indexInput = iter.isIndexInput();
 		INDArray initializationInput = Nd4j.zeros(numSamples, iter.inputColumns(), initialization.length);
 		for( int i=0; i<initialization.length; i++ ){
 			int idx = iter.convertWordToIndex(initialization[i]);
 			for( int j=0; j<numSamples; j++ ){
-				initializationInput.putScalar(new int[]{j,idx,i}, 1.0f);
+				if(indexInput) initializationInput.putScalar(new int[]{j,0,i}, idx);
+				else initializationInput.putScalar(new int[]{j,idx,i}, 1.0f);
 			}
 		}
 
@@ -211,19 +444,24 @@ public class GravesLSTMCharModellingExample {
 		//Sample from network (and feed samples back into input) one character at a time (for all samples)
 		//Sampling is done in parallel here
 		net.rnnClearPreviousState();
-		INDArray output = net.rnnTimeStep(initializationInput);
-		output = output.tensorAlongDimension(output.size(2)-1,1,0);	//Gets the last time step output
+		INDArray output = net.rnnTimeStep(initializationInput);	//The sampler reads the last time step output
 
+		//Next input (single time step), reused for every step
+		//Index input is passed as a 3d time series of length 1, so that the embedding preprocessors apply
+		INDArray nextInput = indexInput ? Nd4j.zeros(numSamples,1,1) : Nd4j.zeros(numSamples,iter.inputColumns());
+		int[] sampled = new int[numSamples];
+		int[] previous = new int[numSamples];
 		for( int i=0; i<wordsToSample; i++ ){
-			//Set up next input (single time step) by sampling from previous output
-			INDArray nextInput = Nd4j.zeros(numSamples,iter.inputColumns());
 			//Output is a probability distribution. Sample from this for each example we want to generate, and add it to the new input
+			sampler.sample(output, sampled);
 			for( int s=0; s<numSamples; s++ ){
-				double[] outputProbDistribution = new double[iter.totalOutcomes()];
-				for( int j=0; j<outputProbDistribution.length; j++ ) outputProbDistribution[j] = output.getDouble(s,j);
-				int sampledWordIdx = sampleFromDistribution(outputProbDistribution,rng);
-
-				nextInput.putScalar(new int[]{s,sampledWordIdx}, 1.0f);		//Prepare next time step input
+				int sampledWordIdx = sampled[s];
+				if(indexInput) nextInput.putScalar(new int[]{s,0,0}, sampledWordIdx);
+				else {
+					if( i > 0 ) nextInput.putScalar(s, previous[s], 0.0f);
+					nextInput.putScalar(s, sampledWordIdx, 1.0f);		//Prepare next time step input
+				}
+				previous[s] = sampledWordIdx;
 				sb[s].append(iter.convertIndexToWord(sampledWordIdx));	//Add sampled character to StringBuilder (human readable output)
 			}
 
@@ -239,7 +477,7 @@ public class GravesLSTMCharModellingExample {
 	 * and return the generated class index.
 	 * @param distribution Probability distribution over classes. Must sum to 1.0
 	 */
-	private static int sampleFromDistribution( double[] distribution, Random rng ){
+	static int sampleFromDistribution( double[] distribution, Random rng ){
 		double d = rng.nextDouble();
 		double sum = 0.0;
 		for( int i=0; i<distribution.length; i++ ){
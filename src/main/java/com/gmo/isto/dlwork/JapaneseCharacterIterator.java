@@ -0,0 +1,336 @@
+package com.gmo.isto.dlwork;
+
+import com.gmo.isto.dlwork.tools.DocItem;
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Character-level DataSetIterator over documents, e.g. Japanese news read with
+ * {@link com.gmo.isto.dlwork.tools.LoadDataFromDB#streamDataFromSqlite}. Unlike {@link CharacterIterator}, the
+ * character set is taken from the corpus: '\n' and the (maxCharacters - 2) most frequent other characters are kept,
+ * and all other characters share the unknown slot at index 0, so the softmax stays a few thousand wide.
+ *
+ * The documents are read once. Their characters are counted on a thread pool while the text is written to a
+ * memory-mapped temporary file, with a '\n' after every document, and characters are mapped to indexes with a
+ * 65536-entry lookup table when minibatches are built.
+ * @author Guangwen Liu
+ */
+public class JapaneseCharacterIterator implements DataSetIterator {
+    //Character shown for the unknown slot
+    public static final char UnknownCharacter = '\uFFFD';
+    private static final int DocsPerThread = 64;
+
+    //Characters in index order, the unknown slot first
+    private char[] validCharacters;
+    //Index of each character in the input/output; 0 for characters outside the kept set
+    private int[] charToIdx;
+    //All characters of the documents, as UTF-16 chars in a memory-mapped temporary file
+    private ByteBuffer[] fileCharacters;
+    private int numCharacters;
+    private int numDocuments;
+    //Length of each example/minibatch (number of characters)
+    private int exampleLength;
+    //Size of each minibatch (number of examples)
+    private int miniBatchSize;
+    //Features are character indexes instead of one-hot vectors
+    private boolean indexInput = false;
+    private Random rng;
+    //Offsets for the start of each example
+    private EpochScheduler exampleStartOffsets;
+    //Reused minibatch arrays, created on first use
+    private int bufferPoolSize = 0;
+    private MinibatchBufferPool buffers;
+
+    /**
+     * @param docs Documents to read
+     * @param miniBatchSize Number of examples per mini-batch
+     * @param exampleLength Number of characters in each input/output vector
+     * @param maxCharacters Size of the character set, including the unknown slot
+     * @param rng Random number generator, for repeatability if required
+     * @param parallelism Number of threads counting characters; the character set is the same either way
+     */
+    public JapaneseCharacterIterator(Iterator<DocItem> docs, int miniBatchSize, int exampleLength, int maxCharacters,
+                                     Random rng, int parallelism) throws IOException {
+        if( miniBatchSize <= 0 ) throw new IllegalArgumentException("Invalid miniBatchSize (must be >0)");
+        if( maxCharacters < 2 || maxCharacters > 65536 ) throw new IllegalArgumentException("Invalid maxCharacters (must be in [2,65536])");
+        if( parallelism <= 0 ) throw new IllegalArgumentException("Invalid parallelism (must be >0)");
+        this.exampleLength = exampleLength;
+        this.miniBatchSize = miniBatchSize;
+        this.rng = rng;
+
+        File textFile = File.createTempFile("japaneseChars", ".bin");
+        long[] counts;
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(textFile), 1 << 16))) {
+                counts = readDocuments(docs, out, parallelism);
+            }
+            fileCharacters = CharacterIterator.mapIndexes(textFile, (long) numCharacters * 2);
+        } finally {
+            //The mapping stays valid after the file is deleted
+            if( !textFile.delete() ) textFile.deleteOnExit();
+        }
+        if( exampleLength >= numCharacters ) throw new IllegalArgumentException("exampleLength="+exampleLength
+                +" cannot exceed number of characters in the documents ("+numCharacters+")");
+
+        buildCharacterSet(counts, maxCharacters);
+
+        //This defines the order in which parts of the corpus are fetched
+        int nMinibatchesPerEpoch = (numCharacters-1) / exampleLength - 2;   //-2: for end index, and for partial example
+        exampleStartOffsets = new EpochScheduler(Math.max(nMinibatchesPerEpoch, 0), exampleLength, rng.nextLong(), true);
+    }
+
+    /**
+     * Writes the documents to out batch by batch, while the characters of each batch are counted on a thread pool
+     * @return number of occurrences of every char
+     */
+    private long[] readDocuments(Iterator<DocItem> docs, DataOutputStream out, int parallelism) throws IOException {
+        final long[][] threadCounts = new long[parallelism][65536];
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private int n = 0;
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable, "CharCount-" + n++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            int batchSize = parallelism * DocsPerThread;
+            while( docs.hasNext() ){
+                final List<String> batch = new ArrayList<>(batchSize);
+                while( batch.size() < batchSize && docs.hasNext() ) batch.add(docs.next().getDocContent());
+
+                List<Future<?>> counted = new ArrayList<>(parallelism);
+                for( int t=0; t<parallelism; t++ ){
+                    final long[] count = threadCounts[t];
+                    final int from = (int) ((long) batch.size() * t / parallelism);
+                    final int to = (int) ((long) batch.size() * (t + 1) / parallelism);
+                    counted.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            for( int i=from; i<to; i++ ){
+                                String doc = batch.get(i);
+                                for( int j=0; j<doc.length(); j++ ) count[doc.charAt(j)]++;
+                                count['\n']++;
+                            }
+                        }
+                    }));
+                }
+
+                for( String doc : batch ){
+                    if( (long) numCharacters + doc.length() + 1 > Integer.MAX_VALUE )
+                        throw new IOException("Too many characters in the documents (at most " + Integer.MAX_VALUE + ")");
+                    out.writeChars(doc);
+                    out.writeChar('\n');
+                    numCharacters += doc.length() + 1;
+                    numDocuments++;
+                }
+
+                for( Future<?> f : counted ) f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long[] counts = new long[65536];
+        for( long[] count : threadCounts ){
+            for( int c=0; c<65536; c++ ) counts[c] += count[c];
+        }
+        return counts;
+    }
+
+    /**
+     * Keeps '\n', which ends every document, and the (maxCharacters - 2) most frequent other characters,
+     * ties broken by char value
+     */
+    private void buildCharacterSet(final long[] counts, int maxCharacters) {
+        List<Integer> chars = new ArrayList<>();
+        for( int c=0; c<65536; c++ ){
+            if( counts[c] > 0 && c != UnknownCharacter ) chars.add(c);
+        }
+        Collections.sort(chars, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                boolean newlineA = a == '\n';
+                boolean newlineB = b == '\n';
+                if( newlineA != newlineB ) return newlineA ? -1 : 1;
+                if( counts[a] != counts[b] ) return counts[a] > counts[b] ? -1 : 1;
+                return a.compareTo(b);
+            }
+        });
+
+        int n = Math.min(chars.size(), maxCharacters - 1);
+        validCharacters = new char[n + 1];
+        validCharacters[0] = UnknownCharacter;
+        charToIdx = new int[65536];
+        long covered = 0;
+        for( int i=0; i<n; i++ ){
+            int c = chars.get(i);
+            validCharacters[i + 1] = (char) c;
+            charToIdx[c] = i + 1;
+            covered += counts[c];
+        }
+        System.out.println("Loaded " + numDocuments + " documents: " + numCharacters + " characters, " + chars.size()
+                + " distinct; the " + n + " kept characters cover " + String.format("%.2f", 100.0 * covered / Math.max(numCharacters, 1)) + "%");
+    }
+
+    /** Index of the character at position pos of the corpus */
+    private int indexAt(int pos) {
+        long offset = (long) pos * 2;
+        ByteBuffer segment = fileCharacters[(int) (offset >>> CharacterIterator.SegmentShift)];
+        return charToIdx[segment.getChar((int) (offset & ((1L << CharacterIterator.SegmentShift) - 1)))];
+    }
+
+    /** Order of the examples in the current epoch */
+    public EpochScheduler getScheduler() {
+        return exampleStartOffsets;
+    }
+
+    /** Visit examples in a random order, seeded per epoch. Takes effect at the start of an epoch */
+    public void setShuffle(boolean shuffle) {
+        exampleStartOffsets.setShuffle(shuffle);
+    }
+
+    /** Characters in index order; index 0 is the unknown slot, shown as {@link #UnknownCharacter} */
+    public char[] getCharacterSet() {
+        return validCharacters.clone();
+    }
+
+    public char convertIndexToCharacter( int idx ){
+        return validCharacters[idx];
+    }
+
+    /** @return index of the character, or 0 (the unknown slot) if it is not in the character set */
+    public int convertCharacterToIndex( char c ){
+        return charToIdx[c];
+    }
+
+    /** Index of the unknown slot */
+    public int getUnknownIndex() {
+        return 0;
+    }
+
+    /** A random character of the character set, never the unknown slot */
+    public char getRandomCharacter(){
+        return validCharacters[1 + (int) (rng.nextDouble()*(validCharacters.length - 1))];
+    }
+
+    public boolean hasNext() {
+        return exampleStartOffsets.hasNext();
+    }
+
+    public DataSet next() {
+        return next(miniBatchSize);
+    }
+
+    public DataSet next(int num) {
+        if( !exampleStartOffsets.hasNext() ) throw new NoSuchElementException();
+
+        int currMinibatchSize = Math.min(num, exampleStartOffsets.remaining());
+        //Get space from the buffer pool:
+        //Note the order here:
+        // dimension 0 = number of examples in minibatch
+        // dimension 1 = size of each vector (i.e., number of characters)
+        // dimension 2 = length of each time series/example
+        //In index input mode, dimension 1 has size 1 and holds the character index instead of a one-hot vector
+        if( buffers == null ) buffers = new MinibatchBufferPool(bufferPoolSize, miniBatchSize, inputColumns(), validCharacters.length, exampleLength);
+        MinibatchBufferPool.Slot slot = buffers.next(currMinibatchSize);
+
+        for( int i=0; i<currMinibatchSize; i++ ){
+            int startIdx = exampleStartOffsets.next();
+            int endIdx = startIdx + exampleLength;
+            int currCharIdx = indexAt(startIdx);	//Current input
+            int c=0;
+            for( int j=startIdx+1; j<endIdx; j++, c++ ){
+                int nextCharIdx = indexAt(j);		//Next character to predict
+                if(indexInput) slot.putInput(i, 0, c, currCharIdx);
+                else slot.putInput(i, currCharIdx, c, 1.0);
+                slot.putLabel(i, nextCharIdx, c);
+                currCharIdx = nextCharIdx;
+            }
+        }
+
+        INDArray input = slot.getInput();
+        INDArray labels = slot.getLabels();
+        return new DataSet(input,labels);
+    }
+
+    public int totalExamples() {
+        return (numCharacters-1) / exampleLength - 2;
+    }
+
+    public int inputColumns() {
+        return indexInput ? 1 : validCharacters.length;
+    }
+
+    public boolean isIndexInput() {
+        return indexInput;
+    }
+
+    /**
+     * Switches the features between one-hot vectors and character indexes, as
+     * {@link JapaneseWordIterator#setIndexInput(boolean)} does. Labels are one-hot in both modes.
+     */
+    public void setIndexInput(boolean indexInput) {
+        this.indexInput = indexInput;
+        this.buffers = null;
+    }
+
+    /**
+     * Reuses a ring of preallocated minibatch arrays instead of allocating new ones in every next() call.
+     * A returned DataSet then stays valid only until poolSize further minibatches have been taken, so poolSize must be
+     * larger than the number of minibatches the caller holds at once (e.g. 2 for a plain fit loop).
+     * @param poolSize Number of reused minibatches, 0 (the default) to allocate fresh arrays
+     */
+    public void setBufferPoolSize(int poolSize) {
+        if( poolSize < 0 ) throw new IllegalArgumentException("Invalid poolSize (must be >=0)");
+        this.bufferPoolSize = poolSize;
+        this.buffers = null;
+    }
+
+    public int totalOutcomes() {
+        return validCharacters.length;
+    }
+
+    public void reset() {
+        exampleStartOffsets.reset();
+    }
+
+    public int batch() {
+        return miniBatchSize;
+    }
+
+    public int cursor() {
+        return exampleStartOffsets.cursor();
+    }
+
+    public int numExamples() {
+        return totalExamples();
+    }
+
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public List<String> getLabels() {
+        throw new UnsupportedOperationException("Not implemented");
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -1,12 +1,16 @@
 package com.gmo.isto.dlwork;
 
+import com.gmo.isto.dlwork.tools.BpeModel;
+import com.gmo.isto.dlwork.tools.CorpusCache;
+import com.gmo.isto.dlwork.tools.CorpusTokenizeTask;
 import com.gmo.isto.dlwork.tools.DocItem;
 import com.gmo.isto.dlwork.tools.JapanesePreProcess;
 import com.gmo.isto.dlwork.tools.JapaneseTokenizer;
 import com.gmo.isto.dlwork.tools.JapaneseTokenizerFactory;
+import com.gmo.isto.dlwork.tools.TokenizationCache;
+import com.gmo.isto.dlwork.tools.TokenizedCorpus;
 import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
@@ -14,6 +18,7 @@ import org.nd4j.linalg.factory.Nd4j;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -24,23 +29,45 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class JapaneseWordIterator implements DataSetIterator {
     public static final int MinWordFreq = 2;
 
-    private Map<String, Integer> wordFreqMap;
     //Maps each character to an index ind the input/output
     private Map<String,Integer> wordToIdxMap;
-    private List idxToWord;
+    private List<String> idxToWord;
     //All characters of the input file (after filtering to only those that are valid
     //private List<dWord> docWords;
 
-    private List words;
+    //Corpus as word indexes, after removing infrequent words
+    private IntBuffer wordIds;
+    //Number of tokens before removing infrequent words
+    private int totalTokens;
+    //Index of the unknown word with a bounded vocabulary, -1 otherwise
+    private int unknownIdx = -1;
+    //Model the corpus was split into subword units with, if any
+    private BpeModel subwords;
+    //Index into wordIds just after the end of each document, null if not known
+    private int[] docEnds;
 
     //Length of each example/minibatch (number of words)
     private int exampleLength;
     //Size of each minibatch (number of examples)
     private int miniBatchSize;
+    //Features are word indexes instead of one-hot vectors
+    private boolean indexInput = false;
+    //Reused minibatch arrays, created on first use
+    private int bufferPoolSize = 0;
+    private MinibatchBufferPool buffers;
     private Random rng;
     protected AtomicInteger position = new AtomicInteger(0);
-    //Offsets for the start of each example
-    private LinkedList<Integer> exampleStartOffsets = new LinkedList<Integer>();
+    //Offsets for the start of each example; in document mode, indexes of the minibatches; in stream mode,
+    //offsets of the minibatches inside each stream
+    private EpochScheduler exampleStartOffsets;
+    //Document mode: examples stay inside one document, sorted by length; batchStarts[b] is the first example of minibatch b
+    private boolean documentMode = false;
+    private int[] docExampleStarts;
+    private int[] docExampleLengths;
+    private int[] batchStarts;
+    //Stream mode: example i of every minibatch is read from the stream starting at i * streamLength
+    private boolean streamMode = false;
+    private int streamLength;
 
     class dWord{
         private int docIndex;
@@ -78,69 +105,134 @@ public class JapaneseWordIterator implements DataSetIterator {
      * @throws IOException If text file cannot  be loaded
      */
     public JapaneseWordIterator(List<DocItem> docs, int miniBatchSize, int exampleLength, Random rng) throws IOException {
+        this(docs, miniBatchSize, exampleLength, rng, 1);
+    }
+
+    /**
+     * @param docs Documents to tokenize
+     * @param miniBatchSize Number of examples per mini-batch
+     * @param exampleLength Number of words in each input/output vector
+     * @param rng Random number generator, for repeatability if required
+     * @param parallelism Number of tokenizer threads. 1 tokenizes on the calling thread; the vocabulary is the same either way
+     */
+    public JapaneseWordIterator(List<DocItem> docs, int miniBatchSize, int exampleLength, Random rng, int parallelism) throws IOException {
+        this(docs.iterator(), miniBatchSize, exampleLength, rng, parallelism);
+    }
+
+    /**
+     * Tokenizes documents as they are read from the iterator, e.g. a {@link com.gmo.isto.dlwork.tools.SqliteDocIterator},
+     * so the source documents are never all held in memory.
+     * @param docs Documents to tokenize
+     * @param miniBatchSize Number of examples per mini-batch
+     * @param exampleLength Number of words in each input/output vector
+     * @param rng Random number generator, for repeatability if required
+     * @param parallelism Number of tokenizer threads. 1 tokenizes on the calling thread; the vocabulary is the same either way
+     */
+    public JapaneseWordIterator(Iterator<DocItem> docs, int miniBatchSize, int exampleLength, Random rng, int parallelism) throws IOException {
+        this(docs, miniBatchSize, exampleLength, rng, parallelism, 0);
+    }
+
+    /**
+     * @param docs Documents to tokenize
+     * @param miniBatchSize Number of examples per mini-batch
+     * @param exampleLength Number of words in each input/output vector
+     * @param rng Random number generator, for repeatability if required
+     * @param parallelism Number of tokenizer threads. 1 tokenizes on the calling thread; the vocabulary is the same either way
+     * @param maxVocabSize If > 0, the vocabulary holds {@link TokenizedCorpus#UnknownWord} and the (maxVocabSize - 1) most
+     *                     frequent words, indexed by decreasing frequency, and all other words are replaced by the unknown word
+     *                     instead of being removed. If 0, every word occurring more than MinWordFreq times is kept.
+     */
+    public JapaneseWordIterator(Iterator<DocItem> docs, int miniBatchSize, int exampleLength, Random rng, int parallelism,
+                                int maxVocabSize) throws IOException {
+        this(tokenize(docs, parallelism), miniBatchSize, exampleLength, rng, maxVocabSize);
+    }
+
+    /**
+     * Creates an iterator over an already tokenized corpus, e.g. one split into subword units with
+     * {@link TokenizedCorpus#toSubwords(BpeModel)}.
+     * @param corpus Tokenized documents
+     * @param miniBatchSize Number of examples per mini-batch
+     * @param exampleLength Number of words in each input/output vector
+     * @param rng Random number generator, for repeatability if required
+     * @param maxVocabSize Vocabulary size limit, or 0 for none; see {@link #JapaneseWordIterator(Iterator, int, int, Random, int, int)}
+     */
+    public JapaneseWordIterator(TokenizedCorpus corpus, int miniBatchSize, int exampleLength, Random rng, int maxVocabSize) {
         if( miniBatchSize <= 0 ) throw new IllegalArgumentException("Invalid miniBatchSize (must be >0)");
         this.exampleLength = exampleLength;
         this.miniBatchSize = miniBatchSize;
         this.rng = rng;
 
-        TokenizerFactory t = new JapaneseTokenizerFactory();
-        //t.setTokenPreProcessor(new JapanesePreProcess());
-
-        //Store valid characters is a map for later use in vectorization
-        wordToIdxMap = new HashMap<String,Integer>();
-        wordFreqMap = new HashMap<>();
-        //docWords = new ArrayList<dWord>();
-        words = new ArrayList<String>();
-
-        int dCnt = 1;
-        int wMax = 0;
-        for(DocItem doc : docs){
-            //String id = doc.getDocId();
-            String content = doc.getDocContent();
-
-            JapaneseTokenizer tz = (JapaneseTokenizer) t.create(content);
-
-            while(tz.hasMoreTokens()) {
-                String word = tz.nextToken();
-                if(word != null){
-                    words.add(word);
-                    wMax++;
-
-                    Integer freq = 1;
-                    if(!wordFreqMap.containsKey(word)){
-                        wordFreqMap.put(word, freq);
-                    }
-                    else{
-                        freq = wordFreqMap.get(word) + 1;
-                        wordFreqMap.put(word,  freq);
-                    }
-
-                    if(freq > MinWordFreq){ // add frequent words only
-                        if(!wordToIdxMap.containsKey(word))
-                            wordToIdxMap.put(word, position.getAndIncrement());
-                    }
-                }
-            }
-
-            dCnt++;
-        }
+        System.out.println("documents: " + corpus.getDocCount());
 
-        System.out.println("documents: " + (dCnt - 1));
+        //Store valid words in a map for later use in vectorization, in index order
+        List<String> vocab = maxVocabSize > 0 ? corpus.buildVocabulary(maxVocabSize) : corpus.buildVocabulary();
+        Map<String,Integer> idx = new HashMap<String,Integer>();
+        for( int i=0; i<vocab.size(); i++ ) idx.put(vocab.get(i), i);
 
-        idxToWord = new ArrayList(wordToIdxMap.keySet());
+        //Convert the corpus to word indexes once, removing infrequent words or replacing them with the unknown word
+        int unknownId = maxVocabSize > 0 ? idx.get(TokenizedCorpus.UnknownWord) : -1;
+        IntBuffer wordIds = corpus.encode(vocab, unknownId);
+        docEnds = corpus.encodeDocumentEnds(vocab, unknownId);
+        init(vocab, idx, wordIds, corpus.size());
+    }
 
-        Iterator it = words.iterator();
-        int wCnt = 0;
-        while (it.hasNext()) {
-            String word =  (String) it.next();
-            if(!wordToIdxMap.containsKey(word)){//remove infrequent words
-                it.remove();
-                continue;
-            }
+    /**
+     * Tokenizes documents into words, as the iterator constructors do. Repeated paragraphs are tokenized once,
+     * through a {@link TokenizationCache} of the default size.
+     * @param parallelism Number of tokenizer threads. 1 tokenizes on the calling thread; the result is the same either way
+     */
+    public static TokenizedCorpus tokenize(Iterator<DocItem> docs, int parallelism) {
+        TokenizationCache cache = new TokenizationCache();
+        TokenizedCorpus corpus = tokenize(docs, parallelism, cache);
+        System.out.println(cache);
+        System.out.println("Tokens skipped as longer than " + JapaneseTokenizer.MaxTokenLength + " characters: " + JapaneseTokenizer.getSkippedTokens());
+        return corpus;
+    }
 
-            wCnt++;
+    /**
+     * Tokenizes documents into words, as the iterator constructors do.
+     * @param parallelism Number of tokenizer threads. 1 tokenizes on the calling thread; the result is the same either way
+     * @param cache Cache of tokenized paragraphs, or null to tokenize every document completely
+     */
+    public static TokenizedCorpus tokenize(Iterator<DocItem> docs, int parallelism, TokenizationCache cache) {
+        if( parallelism <= 0 ) throw new IllegalArgumentException("Invalid parallelism (must be >0)");
+        if(parallelism == 1) {
+            JapaneseTokenizerFactory t = new JapaneseTokenizerFactory();
+            //t.setTokenPreProcessor(new JapanesePreProcess());
+            t.setCache(cache);
+            return CorpusTokenizeTask.tokenize(docs, t, MinWordFreq);
         }
-        //words = new ArrayList(docWords.values());
+        return CorpusTokenizeTask.tokenizeParallel(docs, parallelism, MinWordFreq, cache);
+    }
+
+    /**
+     * Creates an iterator over a corpus loaded from a {@link CorpusCache}, without tokenizing anything.
+     * @param corpus Cached vocabulary and word indexes
+     * @param miniBatchSize Number of examples per mini-batch
+     * @param exampleLength Number of words in each input/output vector
+     * @param rng Random number generator, for repeatability if required
+     */
+    public JapaneseWordIterator(CorpusCache.Entry corpus, int miniBatchSize, int exampleLength, Random rng) {
+        if( miniBatchSize <= 0 ) throw new IllegalArgumentException("Invalid miniBatchSize (must be >0)");
+        this.exampleLength = exampleLength;
+        this.miniBatchSize = miniBatchSize;
+        this.rng = rng;
+
+        List<String> vocab = corpus.getVocabulary();
+        Map<String,Integer> idx = new HashMap<String,Integer>();
+        for( int i=0; i<vocab.size(); i++ ) idx.put(vocab.get(i), i);
+        docEnds = corpus.getDocumentEnds();
+        init(vocab, idx, corpus.getWordIds(), corpus.getTotalTokens());
+    }
+
+    private void init(List<String> vocab, Map<String,Integer> idx, IntBuffer ids, int wMax) {
+        idxToWord = vocab;
+        wordToIdxMap = idx;
+        wordIds = ids;
+        totalTokens = wMax;
+        unknownIdx = idx.containsKey(TokenizedCorpus.UnknownWord) ? idx.get(TokenizedCorpus.UnknownWord) : -1;
+        position.set(idxToWord.size());
+        int wCnt = wordIds.limit();
         System.out.println("size of vocabulary:" + wordToIdxMap.size());
 
         if( exampleLength >= wCnt ) throw new IllegalArgumentException("exampleLength="+exampleLength
@@ -152,28 +244,173 @@ public class JapaneseWordIterator implements DataSetIterator {
 
         //This defines the order in which parts of the file are fetched
         int nMinibatchesPerEpoch = (wCnt-1) / exampleLength - 2;   //-2: for end index, and for partial example
-        for( int i=0; i<nMinibatchesPerEpoch; i++ ){
-            exampleStartOffsets.add(i * exampleLength);
-        }
-        //Collections.shuffle(exampleStartOffsets,rng);
+        exampleStartOffsets = new EpochScheduler(Math.max(nMinibatchesPerEpoch, 0), exampleLength, rng.nextLong(), false);
 
         System.out.println("nMinibatchesPerEpoch: " + nMinibatchesPerEpoch);
     }
 
+    /**
+     * Writes the vocabulary and word indexes of this iterator to a cache, so later runs can skip tokenization
+     */
+    public void writeTo(CorpusCache cache, String key) throws IOException {
+        if( docEnds == null ) throw new IllegalStateException("Document boundaries are not known");
+        cache.store(key, idxToWord, wordIds, totalTokens, docEnds);
+    }
+
+    /**
+     * Switches between fixed-length examples cut from the concatenated corpus (the default) and document examples.
+     * In document mode every example lies inside one document: a document is split into examples of at most
+     * exampleLength words that overlap by one word, so every next-word prediction inside it is trained once, and
+     * documents shorter than exampleLength (e.g. titles) become one shorter example. Documents of a single word are
+     * skipped. Examples are sorted by length and grouped into minibatches of similar length, which are padded at
+     * the end to their longest example and come with feature and label masks. The minibatch composition is fixed
+     * for the run (ties in length are broken by a seeded hash); with shuffle on, the minibatch order changes per epoch.
+     * Takes effect immediately and restarts the epoch.
+     */
+    public void setDocumentMode(boolean documentMode) {
+        if( documentMode && docEnds == null ) throw new IllegalStateException("Document boundaries are not known");
+        if( documentMode && exampleLength < 2 ) throw new IllegalStateException("Document mode needs exampleLength >= 2");
+        if( documentMode == this.documentMode ) return;
+        this.documentMode = documentMode;
+        if( documentMode ) streamMode = false;
+        updateScheduler();
+    }
+
+    /**
+     * Switches between independent examples (the default) and stream examples, for training that carries the
+     * LSTM state between minibatches (see {@link ParallelTrainer#setCarryRnnState(boolean)}).
+     * In stream mode the corpus is split into miniBatchSize contiguous streams, and example i of minibatch n+1
+     * continues exactly where example i of minibatch n stopped. Every minibatch is full and has exampleLength
+     * predicted time steps. Minibatches must be fitted in order, so shuffling is off in this mode.
+     * Takes effect immediately and restarts the epoch.
+     */
+    public void setStreamMode(boolean streamMode) {
+        if( streamMode == this.streamMode ) return;
+        this.streamMode = streamMode;
+        if( streamMode ) documentMode = false;
+        updateScheduler();
+    }
+
+    public boolean isStreamMode() {
+        return streamMode;
+    }
+
+    //Creates the scheduler for the current mode, keeping the seed, shuffle setting and epoch
+    private void updateScheduler() {
+        EpochScheduler old = exampleStartOffsets;
+        docExampleStarts = null;
+        docExampleLengths = null;
+        batchStarts = null;
+        if( documentMode ){
+            buildDocumentExamples(old.getSeed());
+            exampleStartOffsets = new EpochScheduler(batchStarts.length - 1, 1, old.getSeed(), old.isShuffle());
+            System.out.println("Document examples: " + docExampleStarts.length + " in " + (batchStarts.length - 1) + " minibatches");
+        } else if( streamMode ){
+            streamLength = (wordIds.limit() - 1) / miniBatchSize;
+            exampleStartOffsets = new EpochScheduler(streamLength / exampleLength, exampleLength, old.getSeed(), false);
+            System.out.println("Streams: " + miniBatchSize + " of " + streamLength + " words, " + exampleStartOffsets.size() + " minibatches");
+        } else {
+            exampleStartOffsets = new EpochScheduler(Math.max(totalExamples(), 0), exampleLength, old.getSeed(), old.isShuffle());
+        }
+        exampleStartOffsets.startEpoch(old.epoch());
+    }
+
+    public boolean isDocumentMode() {
+        return documentMode;
+    }
+
+    private void buildDocumentExamples(long seed) {
+        //Count the examples first, so they fit in int arrays
+        int n = 0;
+        int docStart = 0;
+        for( int end : docEnds ){
+            if( end - docStart >= 2 ) n += (end - docStart - 2) / (exampleLength - 1) + 1;
+            docStart = end;
+        }
+        int[] starts = new int[n];
+        int[] lengths = new int[n];
+        n = 0;
+        docStart = 0;
+        for( int end : docEnds ){
+            for( int start=docStart; start+1<end; start+=exampleLength-1 ){
+                starts[n] = start;
+                lengths[n++] = Math.min(exampleLength, end - start);
+            }
+            docStart = end;
+        }
+
+        //Seeded shuffle, then a stable counting sort by length: examples of equal length are in random order
+        int[] order = new int[n];
+        for( int i=0; i<n; i++ ) order[i] = i;
+        Random r = new Random(seed);
+        for( int i=n-1; i>0; i-- ){
+            int j = r.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        int[] firstOfLength = new int[exampleLength + 2];
+        for( int i=0; i<n; i++ ) firstOfLength[lengths[i] + 1]++;
+        for( int l=1; l<firstOfLength.length; l++ ) firstOfLength[l] += firstOfLength[l-1];
+        docExampleStarts = new int[n];
+        docExampleLengths = new int[n];
+        for( int i : order ){
+            int pos = firstOfLength[lengths[i]]++;
+            docExampleStarts[pos] = starts[i];
+            docExampleLengths[pos] = lengths[i];
+        }
+
+        int numBatches = (n + miniBatchSize - 1) / miniBatchSize;
+        batchStarts = new int[numBatches + 1];
+        for( int b=0; b<=numBatches; b++ ) batchStarts[b] = Math.min(b * miniBatchSize, n);
+    }
+
+    /** Order of the examples in the current epoch */
+    public EpochScheduler getScheduler() {
+        return exampleStartOffsets;
+    }
+
+    /** Visit examples in a random order, seeded per epoch. Takes effect at the start of an epoch */
+    public void setShuffle(boolean shuffle) {
+        if( shuffle && streamMode ) throw new IllegalStateException("Stream minibatches cannot be shuffled");
+        exampleStartOffsets.setShuffle(shuffle);
+    }
+
     public String convertIndexToWord( int idx ){
-         return (String) idxToWord.get(idx);
+         return idxToWord.get(idx);
     }
 
     public int convertWordToIndex( String c ){
-        return wordToIdxMap.get(c);
+        Integer idx = wordToIdxMap.get(c);
+        if( idx == null && unknownIdx >= 0 ) return unknownIdx;
+        return idx;
+    }
+
+    /** Subword model the vocabulary units come from, or null for whole words */
+    public BpeModel getSubwordModel() {
+        return subwords;
+    }
+
+    public void setSubwordModel(BpeModel subwords) {
+        this.subwords = subwords;
+    }
+
+    /** Index of {@link TokenizedCorpus#UnknownWord} with a bounded vocabulary, otherwise -1 */
+    public int getUnknownIndex() {
+        return unknownIdx;
+    }
+
+    /** Words in index order */
+    public List<String> getVocabulary() {
+        return Collections.unmodifiableList(idxToWord);
     }
 
     public String getRandomWord(){
-        return (String)idxToWord.get((int) (rng.nextDouble()*idxToWord.size()));
+        return idxToWord.get((int) (rng.nextDouble()*idxToWord.size()));
     }
 
     public boolean hasNext() {
-        return exampleStartOffsets.size() > 0;
+        return exampleStartOffsets.hasNext();
     }
 
     public DataSet next() {
@@ -181,61 +418,188 @@ public class JapaneseWordIterator implements DataSetIterator {
     }
 
     public DataSet next(int num) {
-        if( exampleStartOffsets.size() == 0 ) throw new NoSuchElementException();
+        if( !exampleStartOffsets.hasNext() ) throw new NoSuchElementException();
+        if( documentMode ) return nextDocumentBatch();
+        if( streamMode ) return nextStreamBatch();
 
-        int currMinibatchSize = Math.min(num, exampleStartOffsets.size());
-        System.out.println("num: " + num + ", examples: " + exampleStartOffsets.size());
-        //Allocate space:
+        int currMinibatchSize = Math.min(num, exampleStartOffsets.remaining());
+        //Get space from the buffer pool:
         //Note the order here:
         // dimension 0 = number of examples in minibatch
         // dimension 1 = size of each vector (i.e., number of characters)
         // dimension 2 = length of each time series/example
-        INDArray input = Nd4j.zeros(currMinibatchSize,idxToWord.size(),exampleLength);
-        INDArray labels = Nd4j.zeros(currMinibatchSize,idxToWord.size(),exampleLength);
+        //In index input mode, dimension 1 has size 1 and holds the word index instead of a one-hot vector
+        if( buffers == null ) buffers = new MinibatchBufferPool(bufferPoolSize, miniBatchSize, inputColumns(), idxToWord.size(), exampleLength);
+        MinibatchBufferPool.Slot slot = buffers.next(currMinibatchSize);
 
         for( int i=0; i<currMinibatchSize; i++ ){
-            int startIdx = exampleStartOffsets.removeFirst();
+            int startIdx = exampleStartOffsets.next();
             int endIdx = startIdx + exampleLength;
-            int currCharIdx = wordToIdxMap.get(words.get(startIdx));	//Current input
+            int currCharIdx = wordIds.get(startIdx);	//Current input
             int c=0;
             for( int j=startIdx+1; j<endIdx; j++, c++ ){
-                int nextCharIdx = wordToIdxMap.get(words.get(j));		//Next character to predict
-                input.putScalar(new int[]{i,currCharIdx,c}, 1.0);
-                labels.putScalar(new int[]{i,nextCharIdx,c}, 1.0);
+                int nextCharIdx = wordIds.get(j);		//Next character to predict
+                if(indexInput) slot.putInput(i, 0, c, currCharIdx);
+                else slot.putInput(i, currCharIdx, c, 1.0);
+                slot.putLabel(i, nextCharIdx, c);
                 currCharIdx = nextCharIdx;
             }
         }
 
+        INDArray input = slot.getInput();
+        INDArray labels = slot.getLabels();
         return new DataSet(input,labels);
     }
 
+    /** Next minibatch of document examples; num is ignored, as the minibatches are composed in advance */
+    private DataSet nextDocumentBatch() {
+        int b = exampleStartOffsets.next();
+        int from = batchStarts[b];
+        int n = batchStarts[b+1] - from;
+        //Sorted by length, so the last example is the longest
+        int steps = docExampleLengths[from + n - 1] - 1;
+
+        //Fresh arrays, as the number of time steps differs between minibatches
+        MinibatchBufferPool.Slot slot = new MinibatchBufferPool.Slot(n, inputColumns(), idxToWord.size(), steps);
+        INDArray mask = Nd4j.zeros(n, steps);
+        for( int i=0; i<n; i++ ){
+            int startIdx = docExampleStarts[from + i];
+            int endIdx = startIdx + docExampleLengths[from + i];
+            int currCharIdx = wordIds.get(startIdx);
+            int c=0;
+            for( int j=startIdx+1; j<endIdx; j++, c++ ){
+                int nextCharIdx = wordIds.get(j);
+                if(indexInput) slot.putInput(i, 0, c, currCharIdx);
+                else slot.putInput(i, currCharIdx, c, 1.0);
+                slot.putLabel(i, nextCharIdx, c);
+                mask.putScalar(i, c, 1.0);
+                currCharIdx = nextCharIdx;
+            }
+        }
+        return new DataSet(slot.getInput(), slot.getLabels(), mask, mask.dup());
+    }
+
+    /** Next minibatch of stream examples; every minibatch has miniBatchSize examples of exampleLength steps */
+    private DataSet nextStreamBatch() {
+        int offset = exampleStartOffsets.next();
+        if( buffers == null ) buffers = new MinibatchBufferPool(bufferPoolSize, miniBatchSize, inputColumns(), idxToWord.size(), exampleLength);
+        MinibatchBufferPool.Slot slot = buffers.next(miniBatchSize);
+        for( int i=0; i<miniBatchSize; i++ ){
+            int startIdx = i * streamLength + offset;
+            int currCharIdx = wordIds.get(startIdx);
+            for( int c=0; c<exampleLength; c++ ){
+                //The label of the last step is the first input of the next minibatch
+                int nextCharIdx = wordIds.get(startIdx + c + 1);
+                if(indexInput) slot.putInput(i, 0, c, currCharIdx);
+                else slot.putInput(i, currCharIdx, c, 1.0);
+                slot.putLabel(i, nextCharIdx, c);
+                currCharIdx = nextCharIdx;
+            }
+        }
+        return new DataSet(slot.getInput(), slot.getLabels());
+    }
+
     public int totalExamples() {
-        return (words.size()-1) / exampleLength - 2;
+        if( documentMode ) return docExampleStarts.length;
+        if( streamMode ) return exampleStartOffsets.size() * miniBatchSize;
+        return (wordIds.limit()-1) / exampleLength - 2;
+    }
+
+    /** Number of words in each example; in document mode, the longest an example can be */
+    public int getExampleLength() {
+        return exampleLength;
+    }
+
+    /** Number of words of the corpus, after removing infrequent words */
+    public int getNumWords() {
+        return wordIds.limit();
     }
 
     public int inputColumns() {
+        return indexInput ? 1 : idxToWord.size();
+    }
+
+    /** Number of words in the vocabulary, i.e. the size of a one-hot vector */
+    public int vocabSize() {
         return idxToWord.size();
     }
 
+    public boolean isIndexInput() {
+        return indexInput;
+    }
+
+    /**
+     * Switches the features between one-hot vectors and word indexes.
+     * With index input, features have shape [miniBatchSize, 1, exampleLength] and hold the word index of each
+     * time step; this is meant for a network whose first layer is an EmbeddingLayer with nIn = vocabSize().
+     * Labels are one-hot in both modes.
+     */
+    public void setIndexInput(boolean indexInput) {
+        this.indexInput = indexInput;
+        this.buffers = null;
+    }
+
+    /**
+     * Reuses a ring of preallocated minibatch arrays instead of allocating new ones in every next() call.
+     * A returned DataSet then stays valid only until poolSize further minibatches have been taken, so poolSize must be
+     * larger than the number of minibatches the caller holds at once (e.g. 2 for a plain fit loop).
+     * @param poolSize Number of reused minibatches, 0 (the default) to allocate fresh arrays
+     */
+    public void setBufferPoolSize(int poolSize) {
+        if( poolSize < 0 ) throw new IllegalArgumentException("Invalid poolSize (must be >=0)");
+        this.bufferPoolSize = poolSize;
+        this.buffers = null;
+    }
+
     public int totalOutcomes() {
         return idxToWord.size();
     }
 
     public void reset() {
-        exampleStartOffsets.clear();
-        int nMinibatchesPerEpoch = totalExamples();
-        for( int i=0; i<nMinibatchesPerEpoch; i++ ){
-            exampleStartOffsets.add(i * exampleLength);
-        }
-        //Collections.shuffle(exampleStartOffsets,rng);
+        exampleStartOffsets.reset();
     }
 
     public int batch() {
         return miniBatchSize;
     }
 
+    /** Number of examples already taken in this epoch; in document mode, those of the minibatches taken */
     public int cursor() {
-        return totalExamples() - exampleStartOffsets.size();
+        if( streamMode ) return exampleStartOffsets.cursor() * miniBatchSize;
+        if( !documentMode ) return exampleStartOffsets.cursor();
+        EpochScheduler.Shard taken = exampleStartOffsets.shard(0, 1);
+        int examples = 0;
+        for( int i=exampleStartOffsets.cursor(); i>0; i-- ){
+            int b = taken.next();
+            examples += batchStarts[b+1] - batchStarts[b];
+        }
+        return examples;
+    }
+
+    /**
+     * Moves to a position saved with {@link #cursor()}, e.g. in a {@link Checkpoint}. In document mode the
+     * position is rounded up to the end of the minibatch it falls into. In stream mode the carried LSTM state is
+     * not part of the position, so training resumes from a zero state.
+     */
+    public void restorePosition(long seed, boolean shuffle, int epoch, int cursor) {
+        if( streamMode ){
+            exampleStartOffsets.restore(seed, false, epoch, (cursor + miniBatchSize - 1) / miniBatchSize);
+            return;
+        }
+        if( !documentMode ){
+            exampleStartOffsets.restore(seed, shuffle, epoch, cursor);
+            return;
+        }
+        exampleStartOffsets.restore(seed, shuffle, epoch, 0);
+        EpochScheduler.Shard batches = exampleStartOffsets.shard(0, 1);
+        int examples = 0;
+        int taken = 0;
+        while( examples < cursor && batches.hasNext() ){
+            int b = batches.next();
+            examples += batchStarts[b+1] - batchStarts[b];
+            taken++;
+        }
+        exampleStartOffsets.seek(epoch, taken);
     }
 
     public int numExamples() {
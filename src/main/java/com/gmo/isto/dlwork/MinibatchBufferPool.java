@@ -0,0 +1,126 @@
+package com.gmo.isto.dlwork;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Input and label arrays for sequence minibatches, written through their data buffers instead of putScalar.
+ * With a pool size > 0, a fixed ring of full size minibatch arrays is reused: on reuse only the positions
+ * written last time are set back to zero, so nothing is allocated or cleared per element of the tensor.
+ * A DataSet built on a pooled slot is only valid until poolSize further slots have been taken.
+ * With pool size 0, fresh zeroed arrays are created for every minibatch.
+ * @author Guangwen Liu
+ */
+public class MinibatchBufferPool {
+    private final int poolSize;
+    private final int miniBatchSize;
+    private final int inputSize;
+    private final int labelSize;
+    private final int exampleLength;
+    private final Slot[] slots;
+    private int nextSlot = 0;
+
+    /** Input and label arrays of one minibatch, shape [miniBatch, size, exampleLength] */
+    public static class Slot {
+        private final INDArray input;
+        private final INDArray labels;
+        private final DataBuffer inputData;
+        private final DataBuffer labelData;
+        private final int inputOffset, inputStride0, inputStride1, inputStride2;
+        private final int labelOffset, labelStride0, labelStride1, labelStride2;
+        //Linear positions written since the last clear
+        private final int[] inputWritten;
+        private final int[] labelWritten;
+        private int nInputWritten;
+        private int nLabelWritten;
+
+        Slot(int miniBatchSize, int inputSize, int labelSize, int exampleLength) {
+            input = Nd4j.zeros(miniBatchSize, inputSize, exampleLength);
+            labels = Nd4j.zeros(miniBatchSize, labelSize, exampleLength);
+            inputData = input.data();
+            labelData = labels.data();
+            int[] s = input.stride();
+            inputOffset = input.offset();
+            inputStride0 = s[0];
+            inputStride1 = s[1];
+            inputStride2 = s[2];
+            s = labels.stride();
+            labelOffset = labels.offset();
+            labelStride0 = s[0];
+            labelStride1 = s[1];
+            labelStride2 = s[2];
+            inputWritten = new int[miniBatchSize * exampleLength];
+            labelWritten = new int[miniBatchSize * exampleLength];
+        }
+
+        /** Sets input[example, row, step] = value. At most one input value per example and step may be set */
+        public void putInput(int example, int row, int step, double value) {
+            int pos = inputOffset + example * inputStride0 + row * inputStride1 + step * inputStride2;
+            inputData.put(pos, value);
+            inputWritten[nInputWritten++] = pos;
+        }
+
+        /** Sets labels[example, row, step] = 1. At most one label per example and step may be set */
+        public void putLabel(int example, int row, int step) {
+            int pos = labelOffset + example * labelStride0 + row * labelStride1 + step * labelStride2;
+            labelData.put(pos, 1.0);
+            labelWritten[nLabelWritten++] = pos;
+        }
+
+        void clear() {
+            for( int i=0; i<nInputWritten; i++ ) inputData.put(inputWritten[i], 0.0);
+            for( int i=0; i<nLabelWritten; i++ ) labelData.put(labelWritten[i], 0.0);
+            nInputWritten = 0;
+            nLabelWritten = 0;
+        }
+
+        public INDArray getInput() {
+            return input;
+        }
+
+        public INDArray getLabels() {
+            return labels;
+        }
+    }
+
+    /**
+     * @param poolSize Number of reused minibatches, or 0 to allocate new arrays for every minibatch
+     * @param miniBatchSize Number of examples in a full minibatch
+     * @param inputSize Size of dimension 1 of the input
+     * @param labelSize Size of dimension 1 of the labels
+     * @param exampleLength Number of time steps
+     */
+    public MinibatchBufferPool(int poolSize, int miniBatchSize, int inputSize, int labelSize, int exampleLength) {
+        if( poolSize < 0 ) throw new IllegalArgumentException("Invalid poolSize (must be >=0)");
+        this.poolSize = poolSize;
+        this.miniBatchSize = miniBatchSize;
+        this.inputSize = inputSize;
+        this.labelSize = labelSize;
+        this.exampleLength = exampleLength;
+        this.slots = new Slot[poolSize];
+    }
+
+    /**
+     * Returns zeroed arrays for a minibatch. Partial minibatches always get fresh arrays.
+     * @param currMinibatchSize Number of examples in this minibatch
+     */
+    public Slot next(int currMinibatchSize) {
+        if( poolSize == 0 || currMinibatchSize != miniBatchSize ){
+            return new Slot(currMinibatchSize, inputSize, labelSize, exampleLength);
+        }
+        Slot slot = slots[nextSlot];
+        if( slot == null ){
+            slot = new Slot(miniBatchSize, inputSize, labelSize, exampleLength);
+            slots[nextSlot] = slot;
+        } else {
+            slot.clear();
+        }
+        nextSlot = (nextSlot + 1) % poolSize;
+        return slot;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+}
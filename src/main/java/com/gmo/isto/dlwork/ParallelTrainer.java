@@ -0,0 +1,235 @@
+package com.gmo.isto.dlwork;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.updater.aggregate.UpdaterAggregator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Data-parallel training inside one JVM. N replicas of a network are trained on disjoint minibatches,
+ * and every K minibatches per replica their parameters and updater state (e.g. RMSProp history) are averaged.
+ *
+ * Training runs in rounds: the calling thread takes up to N*K minibatches from the iterator and deals them
+ * out round-robin, the replicas fit their share in parallel, and then they are averaged. If the iterator reuses
+ * its minibatch buffers, its pool must hold more than N*K minibatches (plus any prefetched ones).
+ * With a single replica, the LSTM state can be carried between minibatches, see {@link #setCarryRnnState(boolean)}.
+ * @author Guangwen Liu
+ */
+public class ParallelTrainer {
+    private final StatefulNetwork[] replicas;
+    private final int averagingFrequency;
+    private final ExecutorService executor;
+    private TrainingTelemetry telemetry;
+
+    private long examples;
+    private long minibatches;
+    private long fitNanos;
+    private long averagingNanos;
+
+    /**
+     * @param conf Network configuration, e.g. the one built in GravesLSTMCharModellingExample
+     * @param numWorkers Number of replicas and threads
+     * @param averagingFrequency Number of minibatches each replica fits between averaging steps
+     */
+    public ParallelTrainer(MultiLayerConfiguration conf, int numWorkers, int averagingFrequency) {
+        if( numWorkers <= 0 ) throw new IllegalArgumentException("Invalid numWorkers (must be >0)");
+        if( averagingFrequency <= 0 ) throw new IllegalArgumentException("Invalid averagingFrequency (must be >0)");
+        this.averagingFrequency = averagingFrequency;
+        this.replicas = new StatefulNetwork[numWorkers];
+
+        String json = conf.toJson();
+        replicas[0] = new StatefulNetwork(conf);
+        replicas[0].init();
+        for( int i=1; i<numWorkers; i++ ){
+            replicas[i] = new StatefulNetwork(MultiLayerConfiguration.fromJson(json));
+            replicas[i].init();
+            replicas[i].setParams(replicas[0].params().dup());
+        }
+
+        executor = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+            private int n = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ParallelTrainer-" + (n++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Takes up to numWorkers * averagingFrequency minibatches from the iterator, fits them on the replicas in
+     * parallel and averages the replicas.
+     * @return Number of minibatches fitted; 0 when the iterator has no more minibatches
+     */
+    public int fitRound(DataSetIterator iter) throws InterruptedException {
+        List<List<DataSet>> shares = new ArrayList<>(replicas.length);
+        for( int i=0; i<replicas.length; i++ ) shares.add(new ArrayList<DataSet>(averagingFrequency));
+        int n = 0;
+        long roundExamples = 0;
+        long roundTokens = 0;
+        while( n < replicas.length * averagingFrequency ){
+            long nextStart = System.nanoTime();
+            if( !iter.hasNext() ) break;
+            DataSet ds = iter.next();
+            if( telemetry != null ){
+                telemetry.addNext(System.nanoTime() - nextStart);
+                roundTokens += TrainingTelemetry.countTokens(ds);
+            }
+            roundExamples += ds.numExamples();
+            shares.get(n % replicas.length).add(ds);
+            n++;
+        }
+        if( n == 0 ) return 0;
+        examples += roundExamples;
+
+        long start = System.nanoTime();
+        List<Callable<Void>> tasks = new ArrayList<>(replicas.length);
+        for( int i=0; i<replicas.length; i++ ){
+            final MultiLayerNetwork net = replicas[i];
+            final List<DataSet> share = shares.get(i);
+            if( share.isEmpty() ) continue;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for( DataSet ds : share ) net.fit(ds);
+                    return null;
+                }
+            });
+        }
+        for( Future<Void> f : executor.invokeAll(tasks) ){
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Replica failed to fit", e.getCause());
+            }
+        }
+        long fitted = System.nanoTime();
+        average(Math.min(n, replicas.length));
+        averagingNanos += System.nanoTime() - fitted;
+        fitNanos += fitted - start;
+        minibatches += n;
+        if( telemetry != null ) telemetry.addFit(System.nanoTime() - start, n, roundExamples, roundTokens);
+        return n;
+    }
+
+    /** Reports the time spent in next() and fitting of each round to the telemetry; null to stop */
+    public void setTelemetry(TrainingTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Carries the LSTM state from each minibatch to the next, for iterators in stream mode
+     * (see {@link JapaneseWordIterator#setStreamMode(boolean)}). Only possible with one replica, since the
+     * replicas fit minibatches that do not follow each other.
+     */
+    public void setCarryRnnState(boolean carryState) {
+        if( carryState && replicas.length > 1 ) throw new IllegalStateException("Carrying the RNN state needs a single worker");
+        replicas[0].setCarryState(carryState);
+    }
+
+    /** Starts the next minibatch from a zero LSTM state, e.g. at the start of an epoch */
+    public void resetRnnState() {
+        for( StatefulNetwork net : replicas ) net.resetCarriedState();
+    }
+
+    /** Fits all remaining minibatches of the iterator */
+    public void fit(DataSetIterator iter) throws InterruptedException {
+        while( fitRound(iter) > 0 ) { }
+    }
+
+    //Averages parameters and updater state of the replicas that fitted something this round, and copies the result to all
+    private void average(int nActive) {
+        if( replicas.length == 1 ) return;
+        INDArray params = replicas[0].params().dup();
+        for( int i=1; i<nActive; i++ ) params.addi(replicas[i].params());
+        params.divi(nActive);
+
+        UpdaterAggregator aggregator = replicas[0].getUpdater().getAggregator(true);
+        for( int i=1; i<nActive; i++ ) aggregator.aggregate(replicas[i].getUpdater());
+        Updater updater = aggregator.getUpdater();
+
+        for( int i=0; i<replicas.length; i++ ){
+            replicas[i].setParams(i == 0 ? params : params.dup());
+            replicas[i].setUpdater(i == 0 ? updater : updater.clone());
+        }
+    }
+
+    /** Sets the parameters and updater state of all replicas, e.g. from a Checkpoint */
+    public void setState(INDArray params, Updater updater) {
+        for( int i=0; i<replicas.length; i++ ){
+            replicas[i].setParams(i == 0 ? params : params.dup());
+            if( updater != null ) replicas[i].setUpdater(i == 0 ? updater : updater.clone());
+        }
+    }
+
+    /** Replica 0; after each round all replicas have the same parameters */
+    public MultiLayerNetwork getNetwork() {
+        return replicas[0];
+    }
+
+    public int getNumWorkers() {
+        return replicas.length;
+    }
+
+    /** Training throughput since the last resetStats(), in examples per second of fit and averaging time */
+    public double getExamplesPerSecond() {
+        long nanos = fitNanos + averagingNanos;
+        return nanos == 0 ? 0.0 : examples / (nanos / 1e9);
+    }
+
+    public void resetStats() {
+        examples = 0;
+        minibatches = 0;
+        fitNanos = 0;
+        averagingNanos = 0;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ParallelTrainer: %d workers, %d minibatches, %.1f examples/sec, %.1f ms fitting, %.1f ms averaging",
+                replicas.length, minibatches, getExamplesPerSecond(), fitNanos / 1e6, averagingNanos / 1e6);
+    }
+
+    /**
+     * Measures throughput with 1, 2, 4, ... maxWorkers replicas on the first minibatches of the iterator and prints
+     * the scaling efficiency, i.e. throughput with N workers divided by N times the single worker throughput.
+     * @param minibatchesPerRun Number of minibatches fitted for each worker count
+     */
+    public static void reportScaling(MultiLayerConfiguration conf, DataSetIterator iter, int maxWorkers,
+                                     int averagingFrequency, int minibatchesPerRun) throws InterruptedException {
+        List<Integer> workerCounts = new ArrayList<>();
+        for( int w=1; w<maxWorkers; w*=2 ) workerCounts.add(w);
+        workerCounts.add(maxWorkers);
+
+        double base = 0.0;
+        for( int workers : workerCounts ){
+            ParallelTrainer trainer = new ParallelTrainer(conf, workers, averagingFrequency);
+            try {
+                iter.reset();
+                int done = 0;
+                int n;
+                while( done < minibatchesPerRun && (n = trainer.fitRound(iter)) > 0 ) done += n;
+                double eps = trainer.getExamplesPerSecond();
+                if( workers == 1 ) base = eps;
+                double efficiency = base == 0.0 ? 0.0 : eps / (workers * base);
+                System.out.println(String.format("workers=%d: %.1f examples/sec, speedup %.2f, scaling efficiency %.0f%%",
+                        workers, eps, base == 0.0 ? 0.0 : eps / base, 100 * efficiency));
+            } finally {
+                trainer.shutdown();
+            }
+        }
+        iter.reset();
+    }
+}
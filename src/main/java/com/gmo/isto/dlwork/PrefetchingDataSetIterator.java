@@ -0,0 +1,241 @@
+package com.gmo.isto.dlwork;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Wraps a DataSetIterator and builds the next minibatches on a background thread, so vectorization overlaps
+ * with fitting. Up to queueSize minibatches are kept ready.
+ *
+ * The wrapped iterator is only touched by the background thread while an epoch is running. If it reuses its
+ * minibatch buffers (see JapaneseWordIterator.setBufferPoolSize), the pool must hold at least queueSize + 2
+ * minibatches: the queued ones, the one being built and the one being fitted.
+ *
+ * Statistics tell whether training waits for data: if the queue is usually empty and the wait time is high,
+ * vectorization is the bottleneck; if the queue is usually full, fitting is.
+ * @author Guangwen Liu
+ */
+public class PrefetchingDataSetIterator implements DataSetIterator {
+    //Marks the end of an epoch in the queue
+    private static final DataSet EndOfEpoch = new DataSet();
+
+    private final DataSetIterator base;
+    private final int queueSize;
+    private final BlockingQueue<DataSet> queue;
+    private Thread producer;
+    private volatile boolean stopRequested;
+    private volatile Throwable producerError;
+    //Taken from the queue by hasNext(), not yet returned by next()
+    private DataSet peeked;
+    //Cursor of the wrapped iterator when the producer started, and examples returned since then
+    private int startCursor;
+    private int examplesOut;
+
+    private long minibatches;
+    private long requests;
+    private long waitNanos;
+    private long queueDepthSum;
+    private long emptyCount;
+
+    /**
+     * @param base Iterator to prefetch from
+     * @param queueSize Maximum number of minibatches built ahead
+     */
+    public PrefetchingDataSetIterator(DataSetIterator base, int queueSize) {
+        if( queueSize <= 0 ) throw new IllegalArgumentException("Invalid queueSize (must be >0)");
+        this.base = base;
+        this.queueSize = queueSize;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        startProducer();
+    }
+
+    private void startProducer() {
+        producerError = null;
+        stopRequested = false;
+        startCursor = base.cursor();
+        examplesOut = 0;
+        producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while( !stopRequested && base.hasNext() ){
+                        queue.put(base.next());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) {
+                    producerError = t;
+                }
+                try {
+                    queue.put(EndOfEpoch);
+                } catch (InterruptedException e) {
+                    //Stopped by reset() or shutdown()
+                }
+            }
+        }, "DataSetPrefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void stopProducer() {
+        if( producer == null ) return;
+        stopRequested = true;
+        producer.interrupt();
+        try {
+            //The wrapped iterator may swallow the interrupt, so keep draining until a blocked put() returns
+            while( producer.isAlive() ){
+                queue.clear();
+                producer.join(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        producer = null;
+        queue.clear();
+        peeked = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if( peeked == null ){
+            if( producer == null ) return false;
+            int depth = queue.size();
+            requests++;
+            queueDepthSum += depth;
+            if( depth == 0 ) emptyCount++;
+            long start = System.nanoTime();
+            try {
+                peeked = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the next minibatch", e);
+            }
+            waitNanos += System.nanoTime() - start;
+        }
+        if( peeked == EndOfEpoch ){
+            if( producerError != null ) throw new RuntimeException("Prefetching failed", producerError);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public DataSet next() {
+        if( !hasNext() ) throw new NoSuchElementException();
+        DataSet ds = peeked;
+        peeked = null;
+        minibatches++;
+        examplesOut += ds.numExamples();
+        return ds;
+    }
+
+    /** Minibatches are built ahead with the wrapped iterator's batch size, so num must equal batch() */
+    @Override
+    public DataSet next(int num) {
+        if( num != batch() ) throw new UnsupportedOperationException("Prefetched minibatches have size " + batch());
+        return next();
+    }
+
+    @Override
+    public int totalExamples() {
+        return base.totalExamples();
+    }
+
+    @Override
+    public int inputColumns() {
+        return base.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return base.totalOutcomes();
+    }
+
+    /** Stops prefetching, discards minibatches built ahead, resets the wrapped iterator and starts again */
+    @Override
+    public void reset() {
+        stopProducer();
+        base.reset();
+        startProducer();
+    }
+
+    /** Stops the background thread. The iterator can be restarted with reset() */
+    public void shutdown() {
+        stopProducer();
+    }
+
+    @Override
+    public int batch() {
+        return base.batch();
+    }
+
+    /** Cursor of the minibatches handed out so far, i.e. not counting the ones queued ahead */
+    @Override
+    public int cursor() {
+        return startCursor + examplesOut;
+    }
+
+    @Override
+    public int numExamples() {
+        return base.numExamples();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        base.setPreProcessor(preProcessor);
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return base.getLabels();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /** Number of minibatches returned since the last resetStats() */
+    public long getMinibatchCount() {
+        return minibatches;
+    }
+
+    /** Total time spent waiting for the background thread, in milliseconds */
+    public double getWaitMillis() {
+        return waitNanos / 1e6;
+    }
+
+    /** Average number of ready minibatches when one was requested */
+    public double getAverageQueueDepth() {
+        return requests == 0 ? 0.0 : (double) queueDepthSum / requests;
+    }
+
+    /** Number of requests that found no minibatch ready */
+    public long getEmptyCount() {
+        return emptyCount;
+    }
+
+    public void resetStats() {
+        minibatches = 0;
+        requests = 0;
+        waitNanos = 0;
+        queueDepthSum = 0;
+        emptyCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Prefetch: %d minibatches, avg queue depth %.2f/%d, %d waits on empty queue, %.1f ms waiting",
+                minibatches, getAverageQueueDepth(), queueSize, emptyCount, getWaitMillis());
+    }
+}
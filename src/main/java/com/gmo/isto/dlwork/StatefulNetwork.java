@@ -0,0 +1,91 @@
+package com.gmo.isto.dlwork;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.layers.recurrent.GravesLSTM;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Network that can carry the LSTM state from one fit(DataSet) call to the next. Truncated BPTT in
+ * MultiLayerNetwork starts every minibatch from a zero state; with carryState on, the first segment of a
+ * minibatch starts from the state the last segment of the previous minibatch ended in, as it does between the
+ * segments of one minibatch. Gradients still stop at the minibatch boundary.
+ *
+ * This only makes sense if example i of a minibatch continues example i of the previous one, e.g. with
+ * {@link JapaneseWordIterator#setStreamMode(boolean)}, and all minibatches have the same size. The carried state
+ * is kept apart from the state rnnTimeStep uses, so sampling from the network between fits does not disturb it.
+ * @author Guangwen Liu
+ */
+public class StatefulNetwork extends MultiLayerNetwork {
+    private boolean carryState = false;
+    private boolean fitting = false;
+    //State of each recurrent layer after the last fit, null to start from a zero state
+    private List<Map<String,INDArray>> carried;
+    private int[] recurrentLayers;
+
+    public StatefulNetwork(MultiLayerConfiguration conf) {
+        super(conf);
+    }
+
+    @Override
+    public void fit(DataSet data) {
+        if( !carryState ){
+            super.fit(data);
+            return;
+        }
+        int[] rec = recurrentLayers();
+        if( carried == null ) super.rnnClearPreviousState();
+        else for( int i=0; i<rec.length; i++ ) rnnSetPreviousState(rec[i], carried.get(i));
+
+        //Truncated BPTT clears the state before and after a minibatch; that is skipped while fitting
+        fitting = true;
+        try {
+            super.fit(data);
+        } finally {
+            fitting = false;
+        }
+
+        List<Map<String,INDArray>> state = new ArrayList<>(rec.length);
+        for( int l : rec ) state.add(new HashMap<>(rnnGetPreviousState(l)));
+        carried = state;
+    }
+
+    @Override
+    public void rnnClearPreviousState() {
+        if( !fitting ) super.rnnClearPreviousState();
+    }
+
+    private int[] recurrentLayers() {
+        if( recurrentLayers == null ){
+            Layer[] layers = getLayers();
+            int[] rec = new int[layers.length];
+            int n = 0;
+            for( int i=0; i<layers.length; i++ ) if( layers[i] instanceof GravesLSTM ) rec[n++] = i;
+            recurrentLayers = Arrays.copyOf(rec, n);
+        }
+        return recurrentLayers;
+    }
+
+    public boolean isCarryState() {
+        return carryState;
+    }
+
+    /** Turns carrying the state between minibatches on or off; the next minibatch starts from a zero state */
+    public void setCarryState(boolean carryState) {
+        this.carryState = carryState;
+        carried = null;
+    }
+
+    /** Starts the next minibatch from a zero state, e.g. when the iterator starts its streams again */
+    public void resetCarriedState() {
+        carried = null;
+    }
+}
@@ -0,0 +1,252 @@
+package com.gmo.isto.dlwork;
+
+import org.nd4j.linalg.dataset.DataSet;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-stage timing of the training loop: time spent waiting for minibatches in next(), fitting and sampling,
+ * throughput in tokens (predicted time steps) and examples per second, and heap and off-heap memory use.
+ *
+ * The loop (or {@link ParallelTrainer}) adds time to the current round with addNext/addFit/addSampling, and
+ * {@link #endRound(int)} writes one CSV row per round and updates the totals shown over JMX. With one worker a round is
+ * one minibatch. The CSV file is rolled over when it gets too large: telemetry.csv becomes telemetry.csv.1 and so on.
+ * Every row carries the run's start time, so files of several runs can be compared.
+ * @author Guangwen Liu
+ */
+public class TrainingTelemetry implements TrainingTelemetryMBean, Closeable {
+    public static final String MBeanName = "com.gmo.isto.dlwork:type=TrainingTelemetry";
+    private static final String Header = "run,time_ms,epoch,minibatches,round_minibatches,examples,tokens,next_ms,fit_ms,sampling_ms,"
+            + "round_ms,tokens_per_sec,examples_per_sec,heap_used_mb,heap_committed_mb,offheap_used_mb";
+
+    private final File csvFile;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long run = System.currentTimeMillis();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+    private Writer csv;
+    private long csvBytes;
+    private boolean registered;
+
+    //Current round
+    private long roundStart = System.nanoTime();
+    private int roundMinibatches;
+    private long roundExamples;
+    private long roundTokens;
+    private long roundNextNanos;
+    private long roundFitNanos;
+    private long roundSamplingNanos;
+
+    //Totals
+    private int epoch;
+    private long minibatches;
+    private long examples;
+    private long tokens;
+    private long nextNanos;
+    private long fitNanos;
+    private long samplingNanos;
+    private long trainNanos;
+    private double lastTokensPerSecond;
+
+    /**
+     * @param csvFile CSV file to append rows to, or null for JMX only
+     * @param maxFileBytes Size after which the file is rolled over
+     * @param maxFiles Number of rolled-over files kept
+     */
+    public TrainingTelemetry(File csvFile, long maxFileBytes, int maxFiles) throws IOException {
+        this.csvFile = csvFile;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        if( csvFile != null ) openCsv();
+    }
+
+    /** Registers the telemetry with the platform MBean server, replacing an earlier registration */
+    public void registerMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MBeanName);
+        if( server.isRegistered(name) ) server.unregisterMBean(name);
+        server.registerMBean(this, name);
+        registered = true;
+    }
+
+    private void openCsv() throws IOException {
+        File dir = csvFile.getAbsoluteFile().getParentFile();
+        if( dir != null && !dir.isDirectory() && !dir.mkdirs() ) throw new IOException("Could not create directory: " + dir);
+        boolean exists = csvFile.isFile() && csvFile.length() > 0;
+        csvBytes = exists ? csvFile.length() : 0;
+        csv = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile, true), Charset.forName("UTF-8")));
+        if( !exists ) writeLine(Header);
+    }
+
+    private void rollCsv() throws IOException {
+        csv.close();
+        new File(csvFile.getPath() + "." + maxFiles).delete();
+        for( int i=maxFiles-1; i>=1; i-- ){
+            File f = new File(csvFile.getPath() + "." + i);
+            if( f.isFile() ) f.renameTo(new File(csvFile.getPath() + "." + (i + 1)));
+        }
+        if( maxFiles > 0 ) csvFile.renameTo(new File(csvFile.getPath() + ".1"));
+        else csvFile.delete();
+        openCsv();
+    }
+
+    private void writeLine(String line) throws IOException {
+        csv.write(line);
+        csv.write('\n');
+        csv.flush();
+        csvBytes += line.length() + 1;
+    }
+
+    /** Time spent in next() for one minibatch */
+    public void addNext(long nanos) {
+        roundNextNanos += nanos;
+    }
+
+    /** Minibatches fitted in the current round, and the wall-clock time it took */
+    public void addFit(long nanos, int numMinibatches, long numExamples, long numTokens) {
+        roundFitNanos += nanos;
+        roundMinibatches += numMinibatches;
+        roundExamples += numExamples;
+        roundTokens += numTokens;
+    }
+
+    public void addSampling(long nanos) {
+        roundSamplingNanos += nanos;
+    }
+
+    /** Number of predicted time steps in a minibatch, not counting masked padding */
+    public static long countTokens(DataSet ds) {
+        if( ds.getLabelsMaskArray() != null ) return ds.getLabelsMaskArray().sumNumber().longValue();
+        int[] shape = ds.getLabels().shape();
+        return shape.length == 3 ? (long) shape[0] * shape[2] : shape[0];
+    }
+
+    /** Ends the current round: writes its CSV row and adds it to the totals */
+    public synchronized void endRound(int epoch) throws IOException {
+        long now = System.nanoTime();
+        long roundNanos = now - roundStart;
+        roundStart = now;
+        this.epoch = epoch;
+        minibatches += roundMinibatches;
+        examples += roundExamples;
+        tokens += roundTokens;
+        nextNanos += roundNextNanos;
+        fitNanos += roundFitNanos;
+        samplingNanos += roundSamplingNanos;
+        trainNanos += roundNanos - roundSamplingNanos;
+        double seconds = roundNanos / 1e9;
+        lastTokensPerSecond = seconds > 0 ? roundTokens / seconds : 0.0;
+
+        if( csv != null ){
+            MemoryUsage heap = memory.getHeapMemoryUsage();
+            writeLine(String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.1f,%.1f,%.1f,%.1f,%.1f",
+                    run, System.currentTimeMillis(), epoch, minibatches, roundMinibatches, roundExamples, roundTokens,
+                    roundNextNanos / 1e6, roundFitNanos / 1e6, roundSamplingNanos / 1e6, roundNanos / 1e6,
+                    lastTokensPerSecond, seconds > 0 ? roundExamples / seconds : 0.0,
+                    heap.getUsed() / 1048576.0, heap.getCommitted() / 1048576.0, getOffHeapUsedBytes() / 1048576.0));
+            if( csvBytes > maxFileBytes ) rollCsv();
+        }
+
+        roundMinibatches = 0;
+        roundExamples = 0;
+        roundTokens = 0;
+        roundNextNanos = 0;
+        roundFitNanos = 0;
+        roundSamplingNanos = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if( registered ){
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBeanName));
+            } catch (Exception e) {
+                //Already unregistered
+            }
+            registered = false;
+        }
+        if( csv != null ){
+            csv.close();
+            csv = null;
+        }
+    }
+
+    @Override
+    public synchronized long getMinibatches() {
+        return minibatches;
+    }
+
+    @Override
+    public synchronized long getExamples() {
+        return examples;
+    }
+
+    @Override
+    public synchronized long getTokens() {
+        return tokens;
+    }
+
+    @Override
+    public synchronized int getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public synchronized double getTokensPerSecond() {
+        return trainNanos == 0 ? 0.0 : tokens / (trainNanos / 1e9);
+    }
+
+    @Override
+    public synchronized double getExamplesPerSecond() {
+        return trainNanos == 0 ? 0.0 : examples / (trainNanos / 1e9);
+    }
+
+    @Override
+    public synchronized double getLastTokensPerSecond() {
+        return lastTokensPerSecond;
+    }
+
+    @Override
+    public synchronized double getAverageNextMillis() {
+        return minibatches == 0 ? 0.0 : nextNanos / 1e6 / minibatches;
+    }
+
+    @Override
+    public synchronized double getAverageFitMillis() {
+        return minibatches == 0 ? 0.0 : fitNanos / 1e6 / minibatches;
+    }
+
+    @Override
+    public synchronized double getTotalSamplingMillis() {
+        return samplingNanos / 1e6;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getOffHeapUsedBytes() {
+        long used = 0;
+        for( BufferPoolMXBean pool : bufferPools ) used += Math.max(pool.getMemoryUsed(), 0);
+        return used;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Telemetry: %d minibatches, %.1f tokens/sec, %.1f examples/sec, avg next %.2f ms, avg fit %.2f ms, sampling %.1f ms",
+                minibatches, getTokensPerSecond(), getExamplesPerSecond(), getAverageNextMillis(), getAverageFitMillis(),
+                getTotalSamplingMillis());
+    }
+}
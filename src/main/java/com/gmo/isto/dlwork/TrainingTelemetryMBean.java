@@ -0,0 +1,36 @@
+package com.gmo.isto.dlwork;
+
+/**
+ * JMX view of {@link TrainingTelemetry}. Rates and averages are over the whole run; "Last" values are of the
+ * last recorded training round.
+ * @author Guangwen Liu
+ */
+public interface TrainingTelemetryMBean {
+    long getMinibatches();
+
+    long getExamples();
+
+    long getTokens();
+
+    int getEpoch();
+
+    double getTokensPerSecond();
+
+    double getExamplesPerSecond();
+
+    double getLastTokensPerSecond();
+
+    /** Average time per minibatch spent waiting in next() */
+    double getAverageNextMillis();
+
+    /** Average time per minibatch spent in fit(), including parameter averaging */
+    double getAverageFitMillis();
+
+    /** Total time spent generating samples */
+    double getTotalSamplingMillis();
+
+    long getHeapUsedBytes();
+
+    /** Direct and memory-mapped NIO buffers */
+    long getOffHeapUsedBytes();
+}
@@ -0,0 +1,206 @@
+package com.gmo.isto.dlwork;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples word indexes from softmax network output, for text generation.
+ * Each output row is copied in bulk from the array's data buffer into a reused array, and the sample is drawn by
+ * binary search over a cumulative distribution. Optionally the distribution is sharpened or flattened with a
+ * temperature, and truncated to the top-k words and/or the smallest set of words with probability mass >= top-p.
+ *
+ * Instances keep their buffers between calls and are not thread-safe.
+ * @author Guangwen Liu
+ */
+public class WordSampler {
+    private final int vocabSize;
+    private final Random rng;
+    private double temperature = 1.0;
+    private int topK = 0;
+    private double topP = 1.0;
+
+    //Reused buffers
+    private final float[] probs;
+    private final double[] cdf;
+    private final int[] candidates;
+    private long[] sortKeys;
+    private int[] heap;
+
+    /**
+     * @param vocabSize Number of classes in the softmax output
+     * @param rng Random number generator, for repeatability if required
+     */
+    public WordSampler(int vocabSize, Random rng) {
+        this.vocabSize = vocabSize;
+        this.rng = rng;
+        this.probs = new float[vocabSize];
+        this.cdf = new double[vocabSize];
+        this.candidates = new int[vocabSize];
+    }
+
+    /** Temperature < 1 makes sampling more conservative, > 1 more diverse. 1 (default) samples the output as is */
+    public WordSampler setTemperature(double temperature) {
+        if( temperature <= 0 ) throw new IllegalArgumentException("Invalid temperature (must be >0)");
+        this.temperature = temperature;
+        return this;
+    }
+
+    /** Only sample from the k most probable words; 0 (default) disables top-k truncation */
+    public WordSampler setTopK(int topK) {
+        if( topK < 0 ) throw new IllegalArgumentException("Invalid topK (must be >=0)");
+        this.topK = topK;
+        if( topK > 0 ) heap = new int[Math.min(topK, vocabSize)];
+        return this;
+    }
+
+    /** Only sample from the most probable words that together have at least this probability; 1 (default) disables it */
+    public WordSampler setTopP(double topP) {
+        if( topP <= 0 || topP > 1 ) throw new IllegalArgumentException("Invalid topP (must be in (0,1])");
+        this.topP = topP;
+        if( topP < 1.0 && sortKeys == null ) sortKeys = new long[vocabSize];
+        return this;
+    }
+
+    /**
+     * Samples one word per example from network output.
+     * @param output Softmax output, shape [numExamples, vocabSize] or [numExamples, vocabSize, timeSteps];
+     *               for time series the last time step is used
+     * @param out Receives one sampled index per example
+     */
+    public int[] sample(INDArray output, int[] out) {
+        int rows = output.size(0);
+        for( int s=0; s<rows; s++ ) out[s] = sample(output, s);
+        return out;
+    }
+
+    /** Samples one word for example (row) s of network output, shaped as for {@link #sample(INDArray, int[])} */
+    public int sample(INDArray output, int s) {
+        readRow(output, s);
+        return sample(probs);
+    }
+
+    /**
+     * Samples one index from a probability distribution over the first vocabSize entries.
+     * The array is modified when a temperature is set.
+     */
+    public int sample(float[] distribution) {
+        int n = vocabSize;
+        if( temperature != 1.0 ){
+            double inv = 1.0 / temperature;
+            for( int j=0; j<n; j++ ) distribution[j] = (float) Math.pow(distribution[j], inv);
+        }
+
+        int nCand;
+        if( topK > 0 && topK < n ){
+            nCand = selectTopK(distribution, n);
+        } else {
+            for( int j=0; j<n; j++ ) candidates[j] = j;
+            nCand = n;
+        }
+        if( topP < 1.0 ) nCand = truncateTopP(distribution, nCand);
+
+        double sum = 0.0;
+        for( int i=0; i<nCand; i++ ){
+            sum += distribution[candidates[i]];
+            cdf[i] = sum;
+        }
+        if( !(sum > 0.0) ) throw new IllegalArgumentException("Distribution is invalid? sum="+sum);
+
+        double d = rng.nextDouble() * sum;
+        int lo = 0, hi = nCand - 1;
+        while( lo < hi ){
+            int mid = (lo + hi) >>> 1;
+            if( cdf[mid] < d ) lo = mid + 1;
+            else hi = mid;
+        }
+        return candidates[lo];
+    }
+
+    //Copies row s (last time step for 3d output) into probs, in bulk when the row is contiguous
+    private void readRow(INDArray output, int s) {
+        int[] stride = output.stride();
+        int rank = output.rank();
+        int pos = output.offset() + s * stride[0];
+        if( rank == 3 ) pos += (output.size(2) - 1) * stride[2];
+        int step = stride[1];
+        DataBuffer buf = output.data();
+
+        if( step == 1 && buf.dataType() == DataBuffer.Type.FLOAT ){
+            FloatBuffer fb = buf.asNioFloat();
+            fb.position(pos);
+            fb.get(probs, 0, vocabSize);
+        } else if( step == 1 && buf.dataType() == DataBuffer.Type.DOUBLE ){
+            DoubleBuffer db = buf.asNioDouble();
+            for( int j=0; j<vocabSize; j++ ) probs[j] = (float) db.get(pos + j);
+        } else {
+            for( int j=0; j<vocabSize; j++ ) probs[j] = buf.getFloat(pos + j * step);
+        }
+    }
+
+    //Puts the indexes of the topK largest probabilities into candidates, using a min-heap of size topK
+    private int selectTopK(float[] p, int n) {
+        int k = heap.length;
+        for( int j=0; j<k; j++ ){
+            heap[j] = j;
+            siftUp(p, j);
+        }
+        for( int j=k; j<n; j++ ){
+            if( p[j] > p[heap[0]] ){
+                heap[0] = j;
+                siftDown(p, 0, k);
+            }
+        }
+        System.arraycopy(heap, 0, candidates, 0, k);
+        return k;
+    }
+
+    private void siftUp(float[] p, int i) {
+        while( i > 0 ){
+            int parent = (i - 1) >>> 1;
+            if( p[heap[i]] >= p[heap[parent]] ) break;
+            int tmp = heap[i]; heap[i] = heap[parent]; heap[parent] = tmp;
+            i = parent;
+        }
+    }
+
+    private void siftDown(float[] p, int i, int size) {
+        while( true ){
+            int l = 2 * i + 1;
+            if( l >= size ) break;
+            int smallest = (l + 1 < size && p[heap[l + 1]] < p[heap[l]]) ? l + 1 : l;
+            if( p[heap[i]] <= p[heap[smallest]] ) break;
+            int tmp = heap[i]; heap[i] = heap[smallest]; heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+
+    //Sorts the candidates by descending probability and keeps the shortest prefix with mass >= topP
+    private int truncateTopP(float[] p, int nCand) {
+        double total = 0.0;
+        for( int i=0; i<nCand; i++ ){
+            int j = candidates[i];
+            total += p[j];
+            //Non-negative floats order like their bit patterns; negate to sort descending
+            sortKeys[i] = -(((long) Float.floatToIntBits(Math.max(p[j], 0f)) << 32) | (0xffffffffL - j));
+        }
+        Arrays.sort(sortKeys, 0, nCand);
+        double threshold = topP * total * (1.0 - 1e-6);     //Tolerate float rounding in the running sum
+        double mass = 0.0;
+        int kept = 0;
+        while( kept < nCand && mass < threshold ){
+            int j = (int) (0xffffffffL - ((-sortKeys[kept]) & 0xffffffffL));
+            candidates[kept++] = j;
+            mass += p[j];
+        }
+        return Math.max(kept, 1);
+    }
+
+    public int getVocabSize() {
+        return vocabSize;
+    }
+}
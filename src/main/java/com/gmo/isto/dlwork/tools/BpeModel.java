@@ -0,0 +1,312 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Byte-pair-encoding subword model, applied to the surface forms produced by {@link JapaneseTokenizer}.
+ * Each token starts as a sequence of characters, and learned merges of adjacent units are applied in the order
+ * they were learned. Merges never cross token boundaries.
+ *
+ * Japanese text has no separators between tokens (kuromoji keeps whitespace as tokens of its own), so
+ * concatenating the units of a text rebuilds its surface form; see {@link #decode(List)}.
+ * @author Guangwen Liu
+ */
+public class BpeModel {
+    private static final int Magic = 0x4e425045;
+    private static final int Version = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    //Encoded tokens are cached up to this many distinct tokens
+    private static final int MaxCachedTokens = 200000;
+
+    //Merges in the order they were learned, as (left, right) pairs
+    private final List<String[]> merges;
+    //Rank of each merge, by pairKey(left, right)
+    private final Map<String,Integer> mergeRank;
+    private final Map<String,List<String>> cache = new ConcurrentHashMap<>();
+
+    public BpeModel(List<String[]> merges) {
+        this.merges = new ArrayList<>(merges);
+        this.mergeRank = new HashMap<>();
+        for(int i=0; i<merges.size(); i++){
+            String[] m = merges.get(i);
+            mergeRank.put(pairKey(m[0], m[1]), i);
+        }
+    }
+
+    private static String pairKey(String left, String right) {
+        return left.length() + ":" + left + right;
+    }
+
+    /** Word (token) with its frequency, as a sequence of unit ids during training */
+    private static class TrainWord {
+        final int freq;
+        int[] units;
+        int length;
+
+        TrainWord(int[] units, int freq) {
+            this.units = units;
+            this.length = units.length;
+            this.freq = freq;
+        }
+    }
+
+    /** Pair count, as an entry of the training priority queue */
+    private static class PairCount {
+        final long key;
+        final long count;
+
+        PairCount(long key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Learns up to numMerges merges from token frequencies, e.g. {@link TokenizedCorpus#getWordFrequencies()}.
+     * Each step merges the most frequent adjacent pair of units; ties go to the pair of earlier units, so the result
+     * only depends on the frequencies. Training stops early when no pair occurs at least twice.
+     */
+    public static BpeModel train(Map<String,Integer> wordFreqs, int numMerges) {
+        if(numMerges < 0) throw new IllegalArgumentException("Invalid numMerges (must be >=0)");
+
+        //Initial units: characters, numbered in code point order
+        TreeSet<Integer> alphabet = new TreeSet<>();
+        for(String w : wordFreqs.keySet()){
+            for(int i=0; i<w.length(); i=w.offsetByCodePoints(i, 1)) alphabet.add(w.codePointAt(i));
+        }
+        final List<String> units = new ArrayList<>();
+        Map<String,Integer> unitIds = new HashMap<>();
+        for(int cp : alphabet){
+            String u = new String(Character.toChars(cp));
+            unitIds.put(u, units.size());
+            units.add(u);
+        }
+
+        List<String> sortedWords = new ArrayList<>(wordFreqs.keySet());
+        Collections.sort(sortedWords);
+        List<TrainWord> words = new ArrayList<>(sortedWords.size());
+        Map<Long,Long> pairCounts = new HashMap<>();
+        Map<Long,List<Integer>> pairWords = new HashMap<>();
+        for(String w : sortedWords){
+            int[] ids = new int[w.codePointCount(0, w.length())];
+            int n = 0;
+            for(int i=0; i<w.length(); i=w.offsetByCodePoints(i, 1)){
+                ids[n++] = unitIds.get(new String(Character.toChars(w.codePointAt(i))));
+            }
+            TrainWord tw = new TrainWord(ids, wordFreqs.get(w));
+            int wi = words.size();
+            words.add(tw);
+            for(int i=0; i+1<tw.length; i++){
+                long key = pair(ids[i], ids[i + 1]);
+                add(pairCounts, key, tw.freq);
+                List<Integer> ws = pairWords.get(key);
+                if(ws == null) pairWords.put(key, ws = new ArrayList<>());
+                if(ws.isEmpty() || ws.get(ws.size() - 1) != wi) ws.add(wi);
+            }
+        }
+
+        PriorityQueue<PairCount> queue = new PriorityQueue<>(Math.max(16, pairCounts.size()), new Comparator<PairCount>() {
+            @Override
+            public int compare(PairCount a, PairCount b) {
+                if(a.count != b.count) return a.count > b.count ? -1 : 1;
+                return a.key < b.key ? -1 : (a.key == b.key ? 0 : 1);
+            }
+        });
+        for(Map.Entry<Long,Long> e : pairCounts.entrySet()) queue.add(new PairCount(e.getKey(), e.getValue()));
+
+        List<String[]> merges = new ArrayList<>(numMerges);
+        Set<Long> touched = new HashSet<>();
+        while(merges.size() < numMerges && !queue.isEmpty()){
+            PairCount best = queue.poll();
+            Long current = pairCounts.get(best.key);
+            if(current == null || current != best.count) continue;     //Stale entry
+            if(best.count < 2) break;
+
+            int left = (int) (best.key >>> 32);
+            int right = (int) best.key;
+            String merged = units.get(left) + units.get(right);
+            Integer mergedId = unitIds.get(merged);
+            if(mergedId == null){
+                mergedId = units.size();
+                unitIds.put(merged, mergedId);
+                units.add(merged);
+            }
+            merges.add(new String[]{units.get(left), units.get(right)});
+
+            touched.clear();
+            List<Integer> candidates = pairWords.remove(best.key);
+            for(int wi : candidates){
+                TrainWord tw = words.get(wi);
+                if(!contains(tw, left, right)) continue;     //Word lists are not pruned after merges
+                for(int i=0; i+1<tw.length; i++){
+                    long key = pair(tw.units[i], tw.units[i + 1]);
+                    add(pairCounts, key, -tw.freq);
+                    touched.add(key);
+                }
+                int n = 0;
+                for(int i=0; i<tw.length; i++){
+                    if(i + 1 < tw.length && tw.units[i] == left && tw.units[i + 1] == right){
+                        tw.units[n++] = mergedId;
+                        i++;
+                    } else {
+                        tw.units[n++] = tw.units[i];
+                    }
+                }
+                tw.length = n;
+                for(int i=0; i+1<tw.length; i++){
+                    long key = pair(tw.units[i], tw.units[i + 1]);
+                    add(pairCounts, key, tw.freq);
+                    touched.add(key);
+                    List<Integer> ws = pairWords.get(key);
+                    if(ws == null) pairWords.put(key, ws = new ArrayList<>());
+                    if(ws.isEmpty() || ws.get(ws.size() - 1) != wi) ws.add(wi);
+                }
+            }
+            pairCounts.remove(best.key);
+            for(long key : touched){
+                Long c = pairCounts.get(key);
+                if(c != null && c > 0 && key != best.key) queue.add(new PairCount(key, c));
+            }
+        }
+        System.out.println("BPE: " + alphabet.size() + " characters, " + merges.size() + " merges");
+        return new BpeModel(merges);
+    }
+
+    private static long pair(int left, int right) {
+        return ((long) left << 32) | (right & 0xffffffffL);
+    }
+
+    private static void add(Map<Long,Long> counts, long key, long delta) {
+        Long c = counts.get(key);
+        long n = (c == null ? 0 : c) + delta;
+        if(n == 0) counts.remove(key);
+        else counts.put(key, n);
+    }
+
+    private static boolean contains(TrainWord tw, int left, int right) {
+        for(int i=0; i+1<tw.length; i++){
+            if(tw.units[i] == left && tw.units[i + 1] == right) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Splits one token into subword units. Characters that never occurred in training stay single units.
+     */
+    public List<String> encode(String token) {
+        List<String> cached = cache.get(token);
+        if(cached != null) return cached;
+
+        List<String> units = new ArrayList<>(token.length());
+        for(int i=0; i<token.length(); i=token.offsetByCodePoints(i, 1)){
+            units.add(new String(Character.toChars(token.codePointAt(i))));
+        }
+        while(units.size() > 1){
+            //Apply the earliest learned merge present in the token, at all its positions
+            int bestRank = Integer.MAX_VALUE;
+            for(int i=0; i+1<units.size(); i++){
+                Integer rank = mergeRank.get(pairKey(units.get(i), units.get(i + 1)));
+                if(rank != null && rank < bestRank) bestRank = rank;
+            }
+            if(bestRank == Integer.MAX_VALUE) break;
+            String[] m = merges.get(bestRank);
+            List<String> next = new ArrayList<>(units.size());
+            for(int i=0; i<units.size(); i++){
+                if(i + 1 < units.size() && units.get(i).equals(m[0]) && units.get(i + 1).equals(m[1])){
+                    next.add(m[0] + m[1]);
+                    i++;
+                } else {
+                    next.add(units.get(i));
+                }
+            }
+            units = next;
+        }
+        units = Collections.unmodifiableList(units);
+        if(cache.size() < MaxCachedTokens) cache.put(token, units);
+        return units;
+    }
+
+    /** Rebuilds surface text from subword units */
+    public static String decode(List<String> units) {
+        StringBuilder sb = new StringBuilder();
+        for(String u : units) sb.append(u);
+        return sb.toString();
+    }
+
+    public int numMerges() {
+        return merges.size();
+    }
+
+    /** Merges in the order they were learned, as (left, right) pairs */
+    List<String[]> getMerges() {
+        return Collections.unmodifiableList(merges);
+    }
+
+    /**
+     * Describes the model, e.g. for cache keys
+     *
+     * @return number of merges and a digest of the merge list
+     */
+    public String describe() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for(String[] m : merges){
+            md.update(pairKey(m[0], m[1]).getBytes(UTF8));
+            md.update((byte) 0);
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : md.digest()) sb.append(String.format("%02x", b & 0xff));
+        return "bpe(merges=" + merges.size() + ",sha1=" + sb + ")";
+    }
+
+    public void save(File f) throws IOException {
+        File dir = f.getAbsoluteFile().getParentFile();
+        if(dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create directory: " + dir);
+        File tmp = File.createTempFile(f.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                write(out);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(tmp.exists() && !tmp.delete()) tmp.deleteOnExit();
+        }
+    }
+
+    /** @return the model, or null if the file does not exist */
+    public static BpeModel load(File f) throws IOException {
+        if(!f.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            return read(in);
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(Magic);
+        out.writeInt(Version);
+        out.writeInt(merges.size());
+        for(String[] m : merges){
+            out.writeUTF(m[0]);
+            out.writeUTF(m[1]);
+        }
+    }
+
+    public static BpeModel read(DataInputStream in) throws IOException {
+        if(in.readInt() != Magic || in.readInt() != Version) throw new IOException("Not a BPE model");
+        int n = in.readInt();
+        List<String[]> merges = new ArrayList<>(n);
+        for(int i=0; i<n; i++) merges.add(new String[]{in.readUTF(), in.readUTF()});
+        return new BpeModel(merges);
+    }
+}
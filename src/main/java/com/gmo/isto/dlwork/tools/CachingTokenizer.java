@@ -0,0 +1,77 @@
+package com.gmo.isto.dlwork.tools;
+
+import org.deeplearning4j.text.tokenization.tokenizer.TokenPreProcess;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tokenizes a text paragraph by paragraph through a {@link TokenizationCache}, as tokens are read.
+ * Returns the same tokens as {@link JapaneseTokenizer} on the whole text.
+ * @author Guangwen Liu
+ */
+public class CachingTokenizer implements Tokenizer {
+    private final String text;
+    private final TokenizationCache cache;
+    private final org.atilika.kuromoji.Tokenizer kuromoji;
+    private TokenPreProcess tokenPreProcess;
+    private int textPos;
+    //Tokens of the current paragraph
+    private String[] tokens = new String[0];
+    private int tokenPos;
+
+    public CachingTokenizer(String text, TokenizationCache cache, org.atilika.kuromoji.Tokenizer kuromoji) {
+        this.text = text;
+        this.cache = cache;
+        this.kuromoji = kuromoji;
+    }
+
+    @Override
+    public boolean hasMoreTokens() {
+        while(tokenPos >= tokens.length){
+            if(textPos >= text.length()) return false;
+            int end = TokenizationCache.paragraphEnd(text, textPos);
+            tokens = cache.tokenize(text, textPos, end, kuromoji);
+            tokenPos = 0;
+            textPos = end;
+        }
+        return true;
+    }
+
+    @Override
+    public int countTokens() {
+        //Looks up all remaining paragraphs, so their tokens can still be returned afterwards
+        List<String> rest = new ArrayList<>();
+        for(int i=tokenPos; i<tokens.length; i++) rest.add(tokens[i]);
+        tokenPos = tokens.length;
+        while(hasMoreTokens()){
+            for(String token : tokens) rest.add(token);
+            tokenPos = tokens.length;
+        }
+        tokens = rest.toArray(new String[rest.size()]);
+        tokenPos = 0;
+        return tokens.length;
+    }
+
+    @Override
+    public String nextToken() {
+        if(!hasMoreTokens()) return null;
+        String token = tokens[tokenPos++];
+        if(tokenPreProcess != null)
+            token = tokenPreProcess.preProcess(token);
+        return token;
+    }
+
+    @Override
+    public List<String> getTokens() {
+        List<String> tokens = new ArrayList<>();
+        while(hasMoreTokens()) tokens.add(nextToken());
+        return tokens;
+    }
+
+    @Override
+    public void setTokenPreProcessor(TokenPreProcess tokenPreProcessor) {
+        this.tokenPreProcess = tokenPreProcessor;
+    }
+}
@@ -0,0 +1,213 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk cache of tokenized corpora: the vocabulary in index order and the corpus as a sequence of word ids.
+ * Entries are keyed by everything that affects tokenization (see {@link #key}) and read back with a memory map,
+ * so a cache hit costs no tokenization at all.
+ *
+ * File layout (big-endian): magic, version, vocabulary size, vocabulary words as (byte length, UTF-8 bytes),
+ * total number of tokens before filtering, number of word ids, padding to a 4 byte boundary, word ids,
+ * number of documents, and the word id index just after the end of each document.
+ * @author Guangwen Liu
+ */
+public class CorpusCache {
+    private static final int Magic = 0x4e435443;  //"NCTC"
+    private static final int Version = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File cacheDir;
+
+    /** Vocabulary and memory-mapped word ids of one cached corpus */
+    public static class Entry {
+        private final List<String> vocabulary;
+        private final IntBuffer wordIds;
+        private final int totalTokens;
+        private final int[] documentEnds;
+
+        public Entry(List<String> vocabulary, IntBuffer wordIds, int totalTokens) {
+            this(vocabulary, wordIds, totalTokens, null);
+        }
+
+        /**
+         * @param documentEnds for each document, the word id index just after its end; null if not known
+         */
+        public Entry(List<String> vocabulary, IntBuffer wordIds, int totalTokens, int[] documentEnds) {
+            this.vocabulary = vocabulary;
+            this.wordIds = wordIds;
+            this.totalTokens = totalTokens;
+            this.documentEnds = documentEnds;
+        }
+
+        /** Words in index order */
+        public List<String> getVocabulary() {
+            return vocabulary;
+        }
+
+        /** Corpus as vocabulary indexes, infrequent words already removed */
+        public IntBuffer getWordIds() {
+            return wordIds.duplicate();
+        }
+
+        /** Number of tokens before infrequent words were removed */
+        public int getTotalTokens() {
+            return totalTokens;
+        }
+
+        /** For each document, the index into the word ids just after its last word, or null if not known */
+        public int[] getDocumentEnds() {
+            return documentEnds;
+        }
+    }
+
+    public CorpusCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Builds a cache key from everything that determines the tokenized corpus.
+     * @param sql query the documents were loaded with
+     * @param docIds ids of the loaded documents, in load order
+     * @param tokenizerConfig description of the tokenizer and preprocessor, see {@link JapaneseTokenizerFactory#describe()}
+     * @param minWordFreq minimum word frequency of the vocabulary
+     */
+    public static String key(String sql, List<String> docIds, String tokenizerConfig, int minWordFreq) {
+        return key(sql, docIds, tokenizerConfig, minWordFreq, 0);
+    }
+
+    /**
+     * Builds a cache key from everything that determines the tokenized corpus.
+     * @param maxVocabSize vocabulary size limit (see {@link TokenizedCorpus#buildVocabulary(int)}), or 0 for none
+     */
+    public static String key(String sql, List<String> docIds, String tokenizerConfig, int minWordFreq, int maxVocabSize) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        update(md, sql);
+        update(md, tokenizerConfig);
+        update(md, String.valueOf(minWordFreq));
+        if(maxVocabSize > 0) update(md, "maxVocabSize=" + maxVocabSize);
+        update(md, String.valueOf(docIds.size()));
+        for(String id : docIds) update(md, id);
+
+        StringBuilder sb = new StringBuilder();
+        for(byte b : md.digest()) sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    private static void update(MessageDigest md, String s) {
+        byte[] bytes = String.valueOf(s).getBytes(UTF8);
+        md.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        md.update(bytes);
+    }
+
+    private File fileFor(String key) {
+        return new File(cacheDir, "corpus-" + key + ".bin");
+    }
+
+    public boolean contains(String key) {
+        return fileFor(key).isFile();
+    }
+
+    /**
+     * Memory-maps a cached corpus.
+     * @return the entry, or null if there is no (valid) entry for this key
+     */
+    public Entry load(String key) throws IOException {
+        File f = fileFor(key);
+        if(!f.isFile()) return null;
+
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if(buf.remaining() < 12 || buf.getInt() != Magic || buf.getInt() != Version) return invalid(f);
+
+        //Every length is checked against the rest of the file, so a truncated or corrupt entry is rebuilt
+        int vocabSize = buf.getInt();
+        if(vocabSize < 0 || vocabSize > buf.remaining() / 4) return invalid(f);
+        List<String> vocab = new ArrayList<>(vocabSize);
+        for(int i=0; i<vocabSize; i++){
+            if(buf.remaining() < 4) return invalid(f);
+            int length = buf.getInt();
+            if(length < 0 || length > buf.remaining()) return invalid(f);
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            vocab.add(new String(bytes, UTF8));
+        }
+        if(buf.remaining() < 8) return invalid(f);
+        int totalTokens = buf.getInt();
+        int nIds = buf.getInt();
+        int idStart = (buf.position() + 3) & ~3;
+        if(nIds < 0 || idStart > buf.limit() || nIds > (buf.limit() - idStart) / 4) return invalid(f);
+        buf.position(idStart);
+        ByteBuffer idBytes = buf.slice();
+        idBytes.limit(nIds * 4);
+        buf.position(buf.position() + nIds * 4);
+        if(buf.remaining() < 4) return invalid(f);
+        int nDocs = buf.getInt();
+        if(nDocs < 0 || nDocs > buf.remaining() / 4) return invalid(f);
+        int[] docEnds = new int[nDocs];
+        for(int i=0; i<nDocs; i++) docEnds[i] = buf.getInt();
+        return new Entry(vocab, idBytes.asIntBuffer(), totalTokens, docEnds);
+    }
+
+    private static Entry invalid(File f) {
+        System.out.println("Ignoring invalid corpus cache file: " + f.getAbsolutePath());
+        return null;
+    }
+
+    /**
+     * Writes a corpus to the cache. The file is written under a temporary name and then renamed,
+     * so concurrent readers never see a partial entry.
+     * @param wordIds word ids from position 0 to limit are written
+     * @param documentEnds for each document, the word id index just after its end
+     */
+    public void store(String key, List<String> vocabulary, IntBuffer wordIds, int totalTokens, int[] documentEnds) throws IOException {
+        if(!cacheDir.isDirectory() && !cacheDir.mkdirs()) throw new IOException("Could not create cache directory: " + cacheDir);
+        File f = fileFor(key);
+        File tmp = File.createTempFile("corpus-" + key, ".tmp", cacheDir);
+        try {
+            int written;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(Magic);
+                out.writeInt(Version);
+                out.writeInt(vocabulary.size());
+                for(String w : vocabulary){
+                    byte[] bytes = w.getBytes(UTF8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                IntBuffer ids = wordIds.duplicate();
+                ids.rewind();
+                out.writeInt(totalTokens);
+                out.writeInt(ids.remaining());
+                while(out.size() % 4 != 0) out.writeByte(0);
+                while(ids.hasRemaining()) out.writeInt(ids.get());
+                out.writeInt(documentEnds.length);
+                for(int end : documentEnds) out.writeInt(end);
+                written = out.size();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Wrote corpus cache: " + f.getAbsolutePath() + " (" + written + " bytes)");
+        } finally {
+            if(tmp.exists() && !tmp.delete()) tmp.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Token store of a document table that grows over time, for incremental refreshes: it remembers the highest
+ * document id already tokenized (the watermark), and only newer rows are fetched, tokenized and appended.
+ * The word statistics are kept with the tokens, so frequencies and the vocabulary are updated without
+ * tokenizing anything again, and the index of a word never changes once it is in the vocabulary.
+ *
+ * The store is a directory: store.bin holds the settings, the watermark, the number of segments and the
+ * vocabulary, and every refresh adds one segment file with the {@link TokenizedCorpus} of its new documents.
+ * A refresh fetches and tokenizes only the new rows, and writes only their segment and store.bin. Building the
+ * iterator input still takes linear passes over the whole stored corpus: {@link #open} reads every segment, and
+ * {@link #toEntry(BpeModel)} splits all tokens into subword units and encodes them. None of them tokenizes.
+ * Document ids must be integers.
+ * @author Guangwen Liu
+ */
+public class CorpusStore {
+    private static final int Magic = 0x4e435354;  //"NCST"
+    private static final int Version = 2;
+    private static final int SegmentMagic = 0x4e435347;  //"NCSG"
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final String sql;
+    private final String tokenizerConfig;
+    private final int minWordFreq;
+    private final int maxVocabSize;
+
+    private TokenizedCorpus corpus;
+    private List<String> vocabulary;
+    private long watermark = Long.MIN_VALUE;
+    private long pendingWatermark = Long.MIN_VALUE;
+    private int segments;
+
+    private CorpusStore(File dir, String sql, String tokenizerConfig, int minWordFreq, int maxVocabSize) {
+        this.dir = dir;
+        this.sql = sql;
+        this.tokenizerConfig = tokenizerConfig;
+        this.minWordFreq = minWordFreq;
+        this.maxVocabSize = maxVocabSize;
+        corpus = new TokenizedCorpus(minWordFreq);
+    }
+
+    /**
+     * Opens the store in dir, or starts an empty one if there is none or it was built with other settings.
+     * Reads all segments, so its cost grows with the stored corpus.
+     * @param sql query returning (id, content) rows; newer rows are selected from its result
+     * @param tokenizerConfig description of the tokenizer, see {@link JapaneseTokenizerFactory#describe()}
+     * @param minWordFreq minimum word frequency of the vocabulary
+     * @param maxVocabSize vocabulary size limit, or 0 for none
+     */
+    public static CorpusStore open(File dir, String sql, String tokenizerConfig, int minWordFreq, int maxVocabSize) throws IOException {
+        CorpusStore store = new CorpusStore(dir, sql, tokenizerConfig, minWordFreq, maxVocabSize);
+        File f = store.headerFile();
+        if(!f.isFile()) return store;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if(in.readInt() != Magic || in.readInt() != Version){
+                System.out.println("Ignoring invalid corpus store: " + f.getAbsolutePath());
+                return store;
+            }
+            if(!sql.equals(readString(in)) || !tokenizerConfig.equals(readString(in))
+                    || in.readInt() != minWordFreq || in.readInt() != maxVocabSize){
+                System.out.println("Corpus store was built with other settings, starting a new one: " + dir.getAbsolutePath());
+                return store;
+            }
+            long watermark = in.readLong();
+            int segments = in.readInt();
+            int vocabSize = in.readInt();
+            List<String> vocab = null;
+            if(vocabSize >= 0){
+                vocab = new ArrayList<>(vocabSize);
+                for(int i=0; i<vocabSize; i++) vocab.add(readString(in));
+            }
+
+            for(int i=0; i<segments; i++) store.corpus.append(readSegment(store.segmentFile(i)));
+            store.watermark = watermark;
+            store.pendingWatermark = watermark;
+            store.segments = segments;
+            store.vocabulary = vocab;
+        }
+        System.out.println("Opened corpus store " + dir.getAbsolutePath() + ": " + store.corpus.getDocCount() + " documents, "
+                + store.corpus.size() + " tokens, up to id " + store.watermark);
+        return store;
+    }
+
+    private File headerFile() {
+        return new File(dir, "store.bin");
+    }
+
+    private File segmentFile(int i) {
+        return new File(dir, String.format("segment-%05d.bin", i));
+    }
+
+    private static TokenizedCorpus readSegment(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+            if(in.readInt() != SegmentMagic) throw new IOException("Invalid corpus store segment: " + f.getAbsolutePath());
+            return TokenizedCorpus.read(in);
+        }
+    }
+
+    /**
+     * Query for the rows that are not in the store yet, in id order. The columns of the configured query are
+     * kept as they are, since the rows are read by position
+     */
+    public String getRefreshQuery() {
+        String query = "select * from (" + sql + ")";
+        if(watermark != Long.MIN_VALUE) query += " where id > " + watermark;
+        return query + " order by id";
+    }
+
+    /**
+     * Wraps the rows read with {@link #getRefreshQuery()}, to record their highest id. The watermark moves
+     * there with the next {@link #append(TokenizedCorpus)}, also for rows that were filtered out in between.
+     */
+    public Iterator<DocItem> trackIds(final Iterator<DocItem> docs) {
+        return new Iterator<DocItem>() {
+            @Override
+            public boolean hasNext() {
+                return docs.hasNext();
+            }
+
+            @Override
+            public DocItem next() {
+                if(!docs.hasNext()) throw new NoSuchElementException();
+                DocItem doc = docs.next();
+                pendingWatermark = Math.max(pendingWatermark, Long.parseLong(doc.getDocId().trim()));
+                return doc;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Appends the tokens of the new documents as a segment and moves the watermark past them
+     * @param newDocs tokens of the rows read through {@link #trackIds(Iterator)}, in id order
+     */
+    public void append(TokenizedCorpus newDocs) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create corpus store directory: " + dir);
+        if(newDocs.getDocCount() > 0){
+            File f = segmentFile(segments);
+            File tmp = File.createTempFile("segment", ".tmp", dir);
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                    out.writeInt(SegmentMagic);
+                    newDocs.write(out);
+                }
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                if(tmp.exists() && !tmp.delete()) tmp.deleteOnExit();
+            }
+            segments++;
+            corpus.append(newDocs);
+        }
+        watermark = pendingWatermark;
+        writeHeader();
+        System.out.println("Appended " + newDocs.getDocCount() + " documents (" + newDocs.size() + " tokens) to corpus store, up to id " + watermark);
+    }
+
+    /** Writes store.bin under a temporary name and renames it, so a crash leaves the previous state */
+    private void writeHeader() throws IOException {
+        File tmp = File.createTempFile("store", ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(Magic);
+                out.writeInt(Version);
+                writeString(out, sql);
+                writeString(out, tokenizerConfig);
+                out.writeInt(minWordFreq);
+                out.writeInt(maxVocabSize);
+                out.writeLong(watermark);
+                out.writeInt(segments);
+                if(vocabulary == null) out.writeInt(-1);
+                else {
+                    out.writeInt(vocabulary.size());
+                    for(String w : vocabulary) writeString(out, w);
+                }
+            }
+            Files.move(tmp.toPath(), headerFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(tmp.exists() && !tmp.delete()) tmp.deleteOnExit();
+        }
+    }
+
+    /**
+     * Builds or extends the vocabulary over the stored tokens and encodes them. Words already in the vocabulary
+     * keep their index; see {@link TokenizedCorpus#extendVocabulary(List, int)}. Runs over all stored tokens.
+     * @param bpe subword model to split the tokens with, or null for whole words. The vocabulary is over the
+     *            units, so the same model must be used every time.
+     */
+    public CorpusCache.Entry toEntry(BpeModel bpe) throws IOException {
+        TokenizedCorpus view = bpe == null ? corpus : corpus.toSubwords(bpe);
+        List<String> vocab;
+        if(vocabulary == null) vocab = maxVocabSize > 0 ? view.buildVocabulary(maxVocabSize) : view.buildVocabulary();
+        else vocab = view.extendVocabulary(vocabulary, maxVocabSize);
+        if(!vocab.equals(vocabulary)){
+            if(vocabulary != null) System.out.println("Added " + (vocab.size() - vocabulary.size()) + " words to the vocabulary");
+            vocabulary = vocab;
+            if(dir.isDirectory()) writeHeader();
+        }
+        int unknownId = maxVocabSize > 0 ? vocab.indexOf(TokenizedCorpus.UnknownWord) : -1;
+        return new CorpusCache.Entry(vocab, view.encode(vocab, unknownId), view.size(), view.encodeDocumentEnds(vocab, unknownId));
+    }
+
+    /** Word-level tokens of all stored documents */
+    public TokenizedCorpus getCorpus() {
+        return corpus;
+    }
+
+    /** Highest document id in the store, or Long.MIN_VALUE if it is empty */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
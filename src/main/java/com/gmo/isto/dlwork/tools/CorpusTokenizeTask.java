@@ -0,0 +1,149 @@
+package com.gmo.isto.dlwork.tools;
+
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join task that tokenizes a range of documents.
+ * Ranges are split in half until they are small enough; every worker thread tokenizes with its own
+ * kuromoji instance and counts into a local {@link TokenizedCorpus}, and the halves are merged in document order.
+ * Worker threads can share a {@link TokenizationCache}.
+ * @author Guangwen Liu
+ */
+public class CorpusTokenizeTask extends RecursiveTask<TokenizedCorpus> {
+    private static final int DocsPerTask = 32;
+    //Documents read from a stream per pool invocation, per thread
+    private static final int StreamDocsPerThread = DocsPerTask * 4;
+
+    //kuromoji dictionaries are loaded once per worker thread
+    private static final ThreadLocal<JapaneseTokenizerFactory> workerFactory = new ThreadLocal<JapaneseTokenizerFactory>() {
+        @Override
+        protected JapaneseTokenizerFactory initialValue() {
+            return new JapaneseTokenizerFactory(JapaneseTokenizer.newKuromojiTokenizer());
+        }
+    };
+
+    private final List<DocItem> docs;
+    private final int from;
+    private final int to;
+    private final int minWordFreq;
+    private final TokenizationCache cache;
+
+    public CorpusTokenizeTask(List<DocItem> docs, int from, int to, int minWordFreq) {
+        this(docs, from, to, minWordFreq, null);
+    }
+
+    /**
+     * @param cache cache shared by the worker threads, or null
+     */
+    public CorpusTokenizeTask(List<DocItem> docs, int from, int to, int minWordFreq, TokenizationCache cache) {
+        this.docs = docs;
+        this.from = from;
+        this.to = to;
+        this.minWordFreq = minWordFreq;
+        this.cache = cache;
+    }
+
+    /**
+     * Tokenizes all documents on the calling thread with the given factory.
+     */
+    public static TokenizedCorpus tokenize(List<DocItem> docs, TokenizerFactory factory, int minWordFreq) {
+        return tokenizeRange(docs, 0, docs.size(), factory, minWordFreq);
+    }
+
+    /**
+     * Tokenizes documents as they are read from the iterator, on the calling thread.
+     */
+    public static TokenizedCorpus tokenize(Iterator<DocItem> docs, TokenizerFactory factory, int minWordFreq) {
+        TokenizedCorpus corpus = new TokenizedCorpus(minWordFreq);
+        while(docs.hasNext()){
+            tokenizeDoc(corpus, factory, docs.next());
+        }
+        return corpus;
+    }
+
+    /**
+     * Tokenizes documents from the iterator on a fork-join pool, holding only a bounded batch of
+     * not yet tokenized documents in memory. The result is identical to a single-threaded run.
+     */
+    public static TokenizedCorpus tokenizeParallel(Iterator<DocItem> docs, int parallelism, int minWordFreq) {
+        return tokenizeParallel(docs, parallelism, minWordFreq, null);
+    }
+
+    /**
+     * As {@link #tokenizeParallel(Iterator, int, int)}, looking up paragraphs in a cache shared by the worker threads.
+     */
+    public static TokenizedCorpus tokenizeParallel(Iterator<DocItem> docs, int parallelism, int minWordFreq,
+                                                   TokenizationCache cache) {
+        int batchSize = parallelism * StreamDocsPerThread;
+        TokenizedCorpus corpus = new TokenizedCorpus(minWordFreq);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<DocItem> batch = new ArrayList<>(batchSize);
+            while(docs.hasNext()){
+                batch.add(docs.next());
+                if(batch.size() == batchSize || !docs.hasNext()){
+                    corpus.append(pool.invoke(new CorpusTokenizeTask(batch, 0, batch.size(), minWordFreq, cache)));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return corpus;
+    }
+
+    /**
+     * Tokenizes all documents on a fork-join pool of the given size.
+     * The result is identical to {@link #tokenize(List, TokenizerFactory, int)}.
+     */
+    public static TokenizedCorpus tokenizeParallel(List<DocItem> docs, int parallelism, int minWordFreq) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new CorpusTokenizeTask(docs, 0, docs.size(), minWordFreq));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    protected TokenizedCorpus compute() {
+        if(to - from <= DocsPerTask){
+            JapaneseTokenizerFactory factory = workerFactory.get();
+            factory.setCache(cache);
+            return tokenizeRange(docs, from, to, factory, minWordFreq);
+        }
+        int mid = (from + to) >>> 1;
+        CorpusTokenizeTask left = new CorpusTokenizeTask(docs, from, mid, minWordFreq, cache);
+        CorpusTokenizeTask right = new CorpusTokenizeTask(docs, mid, to, minWordFreq, cache);
+        left.fork();
+        TokenizedCorpus rightResult = right.compute();
+        TokenizedCorpus leftResult = left.join();
+        leftResult.append(rightResult);
+        return leftResult;
+    }
+
+    private static TokenizedCorpus tokenizeRange(List<DocItem> docs, int from, int to,
+                                                 TokenizerFactory factory, int minWordFreq) {
+        TokenizedCorpus corpus = new TokenizedCorpus(minWordFreq);
+        for(int i=from; i<to; i++){
+            tokenizeDoc(corpus, factory, docs.get(i));
+        }
+        return corpus;
+    }
+
+    private static void tokenizeDoc(TokenizedCorpus corpus, TokenizerFactory factory, DocItem doc) {
+        Tokenizer tz = factory.create(doc.getDocContent());
+        while(tz.hasMoreTokens()) {
+            String word = tz.nextToken();
+            if(word != null) corpus.addWord(word);
+        }
+        corpus.endDocument();
+    }
+}
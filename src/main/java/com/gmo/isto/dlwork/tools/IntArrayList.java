@@ -0,0 +1,49 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, to avoid boxing large token sequences
+ * @author Guangwen Liu
+ */
+public class IntArrayList {
+    private int[] data;
+    private int size;
+
+    public IntArrayList() {
+        this(1024);
+    }
+
+    public IntArrayList(int initialCapacity) {
+        data = new int[Math.max(initialCapacity, 16)];
+    }
+
+    public void add(int value) {
+        if(size == data.length) grow(size + 1);
+        data[size++] = value;
+    }
+
+    public int get(int i) {
+        if(i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        return data[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Makes sure at least minCapacity values fit without reallocating */
+    public void ensureCapacity(int minCapacity) {
+        if(minCapacity > data.length) grow(minCapacity);
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = Math.max(minCapacity, data.length + (data.length >> 1));
+        data = Arrays.copyOf(data, newCapacity);
+    }
+
+    /** Backing array; only the first size() values are valid */
+    public int[] array() {
+        return data;
+    }
+}
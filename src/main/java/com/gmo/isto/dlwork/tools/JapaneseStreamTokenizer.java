@@ -21,137 +21,156 @@ package com.gmo.isto.dlwork.tools;
 
 import org.deeplearning4j.text.tokenization.tokenizer.TokenPreProcess;
 import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Tokenizer based on the {@link StreamTokenizer}
+ * Streaming tokenizer: reads the stream in chunks of at most {@link #MaxChunkLength} characters, cut after the last
+ * "。" or line break, and tokenizes each chunk with {@link JapaneseTokenizer} in lazy mode. Memory use does not
+ * depend on the size of the stream, so large dump files can be tokenized directly. A sentence longer than a chunk
+ * is cut where the chunk ends. The stream is not closed.
  * @author Guangwen Liu
  *
  */
 public class JapaneseStreamTokenizer implements Tokenizer {
-
-    private StreamTokenizer streamTokenizer;
+    public static final int MaxChunkLength = 8192;
+
+    private final Reader reader;
+    private final org.atilika.kuromoji.Tokenizer kuromoji;
+    private final char[] buffer = new char[MaxChunkLength];
+    private int buffered;
+    private boolean eof;
+    private JapaneseTokenizer chunk;
     private TokenPreProcess tokenPreProcess;
-    private List<String> tokens = new ArrayList<>();
-    private AtomicInteger position = new AtomicInteger(0);
-
-    protected static final Logger log = LoggerFactory.getLogger(JapaneseStreamTokenizer.class);
+    //Set by countTokens
+    private List<String> preloaded;
+    private int preloadedPos;
 
+    /**
+     * @param is UTF-8 text
+     */
     public JapaneseStreamTokenizer(InputStream is) {
-        Reader r = new BufferedReader(new InputStreamReader(is));
-        streamTokenizer = new StreamTokenizer(r);
+        this(is, JapaneseTokenizer.getSharedKuromojiTokenizer());
+    }
+
+    /**
+     * @param is UTF-8 text
+     * @param kuromoji kuromoji tokenizer to use
+     */
+    public JapaneseStreamTokenizer(InputStream is, org.atilika.kuromoji.Tokenizer kuromoji) {
+        this(new InputStreamReader(is, Charset.forName("UTF-8")), kuromoji);
+    }
 
+    public JapaneseStreamTokenizer(Reader reader, org.atilika.kuromoji.Tokenizer kuromoji) {
+        this.reader = reader;
+        this.kuromoji = kuromoji;
     }
 
     /**
-     * Checks, if underlying stream has any tokens left
+     * Reads the next chunk of the stream
      *
-     * @return
+     * @return text up to and including the last sentence boundary in the buffer, or null at the end of the stream
      */
-    private boolean streamHasMoreTokens() {
-        if(streamTokenizer.ttype != StreamTokenizer.TT_EOF) {
-            try {
-                streamTokenizer.nextToken();
-            } catch (IOException e1) {
-                throw new RuntimeException(e1);
+    private String nextChunk() {
+        try {
+            while(!eof && buffered < buffer.length){
+                int n = reader.read(buffer, buffered, buffer.length - buffered);
+                if(n < 0) eof = true;
+                else buffered += n;
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if(buffered == 0) return null;
+
+        int end = buffered;
+        if(!eof){
+            end = lastBoundary(buffer, buffered);
+            //No boundary: cut the sentence, but not inside a surrogate pair
+            if(end == 0) end = Character.isHighSurrogate(buffer[buffered - 1]) ? buffered - 1 : buffered;
         }
-        return streamTokenizer.ttype != StreamTokenizer.TT_EOF && streamTokenizer.ttype != -1;
+        String text = new String(buffer, 0, end);
+        System.arraycopy(buffer, end, buffer, 0, buffered - end);
+        buffered -= end;
+        return text;
     }
 
     /**
-     * Checks, if any prebuffered tokens left, otherswise checks underlying stream
-     * @return
+     * @return index just after the last "。" or line break in the first length characters, or 0 if there is none
      */
+    static int lastBoundary(char[] buffer, int length) {
+        for(int i=length-1; i>=0; i--){
+            char c = buffer[i];
+            if(c == '。' || c == '\n') return i + 1;
+        }
+        return 0;
+    }
+
     @Override
     public boolean hasMoreTokens() {
-        log.info("Tokens size: [" + tokens.size()+"], position: ["+ position.get()+"]");
-        if (tokens.size() > 0) return position.get() < tokens.size();
-            else return streamHasMoreTokens();
+        if(preloaded != null) return preloadedPos < preloaded.size();
+        while(chunk == null || !chunk.hasMoreTokens()){
+            String text = nextChunk();
+            if(text == null) return false;
+            chunk = new JapaneseTokenizer(text, kuromoji, true);
+            chunk.setTokenPreProcessor(tokenPreProcess);
+        }
+        return true;
     }
 
     /**
      * Returns number of tokens
-     * PLEASE NOTE: this method effectively preloads all tokens. So use it with caution, since on large streams it will consume big amount of memory
+     * PLEASE NOTE: this method reads and keeps all remaining tokens of the stream, so memory use is no longer bounded
      *
      * @return
      */
     @Override
     public int countTokens() {
-        return getTokens().size();
+        if(preloaded == null){
+            List<String> rest = getTokens();
+            preloaded = rest;
+            preloadedPos = 0;
+        }
+        return preloaded.size() - preloadedPos;
     }
 
-
     /**
-     * This method returns next token from prebuffered list of tokens or underlying InputStream
+     * This method returns next token of the stream
      *
-     * @return next token as String
+     * @return next token as String, or null at the end of the stream
      */
     @Override
     public String nextToken() {
-        if (tokens.size() > 0 && position.get() < tokens.size()) return tokens.get(position.getAndIncrement());
-        return nextTokenFromStream();
-    }
-
-    /**
-     * This method returns next token from underlying InputStream
-     *
-     * @return
-     */
-    private String nextTokenFromStream() {
-        StringBuffer sb = new StringBuffer();
-
-
-        if(streamTokenizer.ttype == StreamTokenizer.TT_WORD) {
-            sb.append(streamTokenizer.sval);
-        } else if(streamTokenizer.ttype == StreamTokenizer.TT_NUMBER) {
-            sb.append(streamTokenizer.nval);
-        } else if(streamTokenizer.ttype == StreamTokenizer.TT_EOL) {
-            try {
-                while(streamTokenizer.ttype == StreamTokenizer.TT_EOL)
-                    streamTokenizer.nextToken();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        } else if(streamHasMoreTokens())
-            return nextTokenFromStream();
-
-
-        String ret =  sb.toString();
-
-        if(tokenPreProcess != null)
-            ret = tokenPreProcess.preProcess(ret);
-        return ret;
-
+        while(hasMoreTokens()){
+            if(preloaded != null) return preloaded.get(preloadedPos++);
+            String token = chunk.nextToken();
+            if(token != null) return token;
+        }
+        return null;
     }
 
     /**
-     * Returns all tokens as list of Strings
+     * Returns all remaining tokens as list of Strings
      *
      * @return List of tokens
      */
     @Override
     public List<String> getTokens() {
-        //List<String> tokens = new ArrayList<>();
-        if (tokens.size() > 0) return tokens;
-
-        log.info("Starting prebuffering...");
-        while(streamHasMoreTokens()) {
-            tokens.add(nextTokenFromStream());
+        List<String> tokens = new ArrayList<>();
+        while(hasMoreTokens()) {
+            String token = nextToken();
+            if(token != null) tokens.add(token);
         }
-        log.info("Tokens prefetch finished. Tokens size: [" + tokens.size()+"]");
         return tokens;
     }
 
     @Override
     public void setTokenPreProcessor(TokenPreProcess tokenPreProcessor) {
         this.tokenPreProcess = tokenPreProcessor;
+        if(chunk != null) chunk.setTokenPreProcessor(tokenPreProcessor);
     }
 
 }
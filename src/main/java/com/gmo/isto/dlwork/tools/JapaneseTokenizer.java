@@ -25,34 +25,128 @@ import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Default tokenizer
+ * Default tokenizer. In lazy mode the text is tokenized one sentence at a time as tokens are requested, and only
+ * the surface forms of the current sentence are kept.
+ *
+ * With split on, kuromoji tokenizes each sentence separately, so a text cut into pieces that end with a "。"
+ * gives the same tokens piece by piece as in one call. Lazy mode and {@link TokenizationCache} rely on this to
+ * return the same tokens as tokenizing the whole text.
  * @author Guangwen Liu
  */
 public class JapaneseTokenizer implements Tokenizer {
+	//Longer surface forms are skipped
+	public static final int MaxTokenLength = 30;
+	public static final org.atilika.kuromoji.Tokenizer.Mode KuromojiMode = org.atilika.kuromoji.Tokenizer.Mode.NORMAL;
+	//Tokens skipped for being longer than MaxTokenLength, over all instances
+	private static final AtomicLong skippedTokens = new AtomicLong();
+
 	List<Token> tokens = null;
 	protected AtomicInteger position = new AtomicInteger(0);
 
+	//Lazy mode: text not tokenized yet, and surface forms of the current sentence
+	private org.atilika.kuromoji.Tokenizer kuromoji;
+	private String text;
+	private int textPos;
+	private final List<String> surfaces = new ArrayList<>();
+	private int surfacePos;
+
 	public JapaneseTokenizer(String text) {
-		tokens = tokenizer.tokenize(text);
+		this(text, tokenizer);
+	}
+
+	/**
+	 * @param text text to tokenize
+	 * @param kuromoji kuromoji tokenizer to use instead of the shared static one
+	 */
+	public JapaneseTokenizer(String text, org.atilika.kuromoji.Tokenizer kuromoji) {
+		this(text, kuromoji, false);
+	}
+
+	/**
+	 * @param text text to tokenize
+	 * @param kuromoji kuromoji tokenizer to use
+	 * @param lazy tokenize sentence by sentence on demand instead of the whole text up front
+	 */
+	public JapaneseTokenizer(String text, org.atilika.kuromoji.Tokenizer kuromoji, boolean lazy) {
+		if(lazy){
+			this.kuromoji = kuromoji;
+			this.text = text;
+		}
+		else tokens = kuromoji.tokenize(text);
+	}
+
+	/**
+	 * @return index just after the sentence starting at from: after the next "。", or the end of the text
+	 */
+	static int sentenceEnd(String text, int from) {
+		int end = text.indexOf('。', from);
+		return end < 0 ? text.length() : end + 1;
+	}
+
+	/**
+	 * Tokenizes sentences until there is an unread surface form
+	 *
+	 * @return false if the text is used up
+	 */
+	private boolean fillSurfaces() {
+		while(surfacePos >= surfaces.size()){
+			if(textPos >= text.length()) return false;
+			int end = sentenceEnd(text, textPos);
+			surfaces.clear();
+			surfacePos = 0;
+			for(Token token : kuromoji.tokenize(text.substring(textPos, end))) surfaces.add(token.getSurfaceForm());
+			textPos = end;
+		}
+		return true;
 	}
 	
-	private static org.atilika.kuromoji.Tokenizer tokenizer = org.atilika.kuromoji.Tokenizer.builder()
-			.mode(org.atilika.kuromoji.Tokenizer.Mode.NORMAL)
-			.split(true)
-			.build();
+	private static org.atilika.kuromoji.Tokenizer tokenizer = newKuromojiTokenizer();
+
+	/** The kuromoji tokenizer shared by instances that are not given their own */
+	public static org.atilika.kuromoji.Tokenizer getSharedKuromojiTokenizer() {
+		return tokenizer;
+	}
+
+	/** Number of tokens longer than MaxTokenLength skipped by all tokenizers so far */
+	public static long getSkippedTokens() {
+		return skippedTokens.get();
+	}
+
+	/**
+	 * Builds a kuromoji tokenizer with the settings used by this class.
+	 * Each call loads a separate dictionary instance, so use it once per worker thread.
+	 */
+	public static org.atilika.kuromoji.Tokenizer newKuromojiTokenizer() {
+		return org.atilika.kuromoji.Tokenizer.builder()
+				.mode(KuromojiMode)
+				.split(true)
+				.build();
+	}
 
 	private TokenPreProcess tokenPreProcess;
 	
 	@Override
 	public boolean hasMoreTokens() {
+		if(tokens == null) return fillSurfaces();
 		return position.get() < tokens.size();
 	}
 
 	@Override
 	public int countTokens() {
-		return tokens.size();
+		if(tokens != null) return tokens.size();
+		//Tokenizes the rest of the text, so its tokens can still be returned afterwards
+		List<String> rest = new ArrayList<>(surfaces.subList(surfacePos, surfaces.size()));
+		surfaces.clear();
+		surfacePos = 0;
+		while(fillSurfaces()){
+			rest.addAll(surfaces);
+			surfaces.clear();
+		}
+		surfaces.addAll(rest);
+		return surfaces.size();
 	}
 
 	private boolean isBlackToken(Token token){
@@ -75,16 +169,16 @@ public class JapaneseTokenizer implements Tokenizer {
 
 	@Override
 	public String nextToken() {
-		if(!hasMoreTokens()) return null;
-
-		Token token = tokens.get(position.getAndIncrement());
-//		if(isBlackToken(token)){
-//			return nextToken();
-//		}
-		String base = token.getSurfaceForm();
-		if(base.length() > 30) {
-			System.out.println("too long: " + base);
-			return nextToken();
+		String base;
+		while(true){
+			if(!hasMoreTokens()) return null;
+			if(tokens == null) base = surfaces.get(surfacePos++);
+			else base = tokens.get(position.getAndIncrement()).getSurfaceForm();
+//			if(isBlackToken(token)){
+//				continue;
+//			}
+			if(base.length() <= MaxTokenLength) break;
+			skippedTokens.incrementAndGet();
 		}
 		if(tokenPreProcess != null)
             base = tokenPreProcess.preProcess(base);
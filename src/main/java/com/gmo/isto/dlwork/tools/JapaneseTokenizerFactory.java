@@ -31,19 +31,73 @@ import java.io.InputStream;
 public class JapaneseTokenizerFactory implements TokenizerFactory {
 
     private TokenPreProcess tokenPreProcess;
+    private org.atilika.kuromoji.Tokenizer kuromoji;
+    private BpeModel subwords;
+    private boolean lazy = true;
+    private TokenizationCache cache;
+
+    public JapaneseTokenizerFactory() {
+    }
+
+    /**
+     * @param kuromoji dedicated kuromoji tokenizer, e.g. one per worker thread
+     */
+    public JapaneseTokenizerFactory(org.atilika.kuromoji.Tokenizer kuromoji) {
+        this.kuromoji = kuromoji;
+    }
 
     @Override
     public Tokenizer create(String toTokenize) {
-        Tokenizer t =  new JapaneseTokenizer(toTokenize);
+        org.atilika.kuromoji.Tokenizer k = kuromoji == null ? JapaneseTokenizer.getSharedKuromojiTokenizer() : kuromoji;
+        Tokenizer t = cache == null ? new JapaneseTokenizer(toTokenize, k, lazy) : new CachingTokenizer(toTokenize, cache, k);
         t.setTokenPreProcessor(tokenPreProcess);
-        return t;
+        return subwords == null ? t : new SubwordTokenizer(t, subwords);
     }
 
     @Override
     public Tokenizer create(InputStream toTokenize) {
-        Tokenizer t =  new JapaneseStreamTokenizer(toTokenize);
+        Tokenizer t = new JapaneseStreamTokenizer(toTokenize, kuromoji == null ? JapaneseTokenizer.getSharedKuromojiTokenizer() : kuromoji);
         t.setTokenPreProcessor(tokenPreProcess);
-        return t;
+        return subwords == null ? t : new SubwordTokenizer(t, subwords);
+    }
+
+    /**
+     * Tokenizes strings sentence by sentence as tokens are read (the default), keeping only surface forms,
+     * or the whole string up front; see {@link JapaneseTokenizer}.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Looks up the tokens of each paragraph of a string in the cache before tokenizing it. The cache can be
+     * shared by several factories.
+     *
+     * @param cache tokenization cache, or null to tokenize every string
+     */
+    public void setCache(TokenizationCache cache) {
+        this.cache = cache;
+    }
+
+    public TokenizationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Splits tokens into subword units with the given model
+     *
+     * @param subwords BPE model, or null to return whole tokens
+     */
+    public void setSubwordModel(BpeModel subwords) {
+        this.subwords = subwords;
+    }
+
+    public BpeModel getSubwordModel() {
+        return subwords;
     }
 
     @Override
@@ -51,6 +105,18 @@ public class JapaneseTokenizerFactory implements TokenizerFactory {
         this.tokenPreProcess = preProcessor;
     }
 
+    /**
+     * Describes the tokenizer settings that affect the produced tokens, e.g. for cache keys
+     *
+     * @return description of tokenizer mode, token filtering and preprocessor
+     */
+    public String describe() {
+        return "JapaneseTokenizer(mode=" + JapaneseTokenizer.KuromojiMode + ",split=true,maxTokenLength="
+                + JapaneseTokenizer.MaxTokenLength + ");preProcessor="
+                + (tokenPreProcess == null ? "none" : tokenPreProcess.getClass().getName())
+                + (subwords == null ? "" : ";subwords=" + subwords.describe());
+    }
+
     /**
      * Returns TokenPreProcessor set for this TokenizerFactory instance
      *
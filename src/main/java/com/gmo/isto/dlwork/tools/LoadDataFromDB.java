@@ -12,6 +12,7 @@ import java.util.regex.Pattern;
 public class LoadDataFromDB {
     public static String sqlLiteConnString = "jdbc:sqlite:news.db";
     public static String sqlDefault = "select id, post_content from xb_corpus";
+    public static int defaultFetchSize = 500;
 
     private static Pattern ptn = Pattern.compile("\\[p id=\"\\d+\"\\]");
 
@@ -41,17 +42,16 @@ public class LoadDataFromDB {
             rs = statement.executeQuery(query);
             int i = 0;
             while (rs.next()) {
-                Matcher m = ptn.matcher(rs.getString(2));
-                String filterContent = m.replaceAll("");
-                String postId = rs.getString(1);
+                DocItem item = toDocItem(rs);
 
                 if(i < 10){
+                    String filterContent = item.getDocContent();
                     Integer len = Math.min(filterContent.length(), 200);
-                    System.out.println(postId + "," + filterContent.substring(0, len));
+                    System.out.println(item.getDocId() + "," + filterContent.substring(0, len));
                 }
                 i++;
 
-                rowSet.add(new DocItem(postId, filterContent));
+                rowSet.add(item);
             }
 
         } catch (ClassNotFoundException e) {
@@ -77,4 +77,52 @@ public class LoadDataFromDB {
             return rowSet;
         }
     }
+
+    /**
+     * Streams documents from the database instead of loading the whole result into memory.
+     * The returned iterator closes its statement and connection once the last row is read;
+     * call close() on it when abandoning the iteration early.
+     * @param connString JDBC connection string, or null for the default
+     * @param sql query returning (id, content) rows, or null for the default
+     * @param fetchSize number of rows fetched from the driver at a time
+     */
+    public static SqliteDocIterator streamDataFromSqlite(String connString, String sql, int fetchSize) throws SQLException {
+        String query = sql != null ? sql : LoadDataFromDB.sqlDefault;
+        String sqliteConn = connString != null ? connString : LoadDataFromDB.sqlLiteConnString;
+        return new SqliteDocIterator(sqliteConn, query, fetchSize);
+    }
+
+    /**
+     * Reads only the document ids returned by a query, in query order. The query is wrapped so that the
+     * contents are never fetched.
+     * @param connString JDBC connection string, or null for the default
+     * @param sql query returning (id, content) rows, or null for the default
+     */
+    public static List<String> loadDocIds(String connString, String sql) throws SQLException {
+        String query = "select id from (" + (sql != null ? sql : LoadDataFromDB.sqlDefault) + ")";
+        String sqliteConn = connString != null ? connString : LoadDataFromDB.sqlLiteConnString;
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite JDBC driver not found", e);
+        }
+
+        List<String> ids = new ArrayList<String>();
+        try (Connection connection = DriverManager.getConnection(sqliteConn);
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(query)) {
+            while (rs.next()) {
+                ids.add(rs.getString(1));
+            }
+        }
+        return ids;
+    }
+
+    /** Converts the current (id, content) row to a DocItem, stripping paragraph markers from the content */
+    static DocItem toDocItem(ResultSet rs) throws SQLException {
+        Matcher m = ptn.matcher(rs.getString(2));
+        String filterContent = m.replaceAll("");
+        String postId = rs.getString(1);
+        return new DocItem(postId, filterContent);
+    }
 }
@@ -0,0 +1,284 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Drops near-duplicate documents from a stream of {@link DocItem}s in a single pass, e.g. between
+ * {@link LoadDataFromDB} and the tokenizer. Every document gets a MinHash signature over its character shingles;
+ * LSH banding finds earlier documents that may be similar, and a document is dropped if the estimated Jaccard
+ * similarity to one of them is at least the threshold. The first copy of a story is kept.
+ *
+ * Signatures of a batch of documents are computed on a thread pool, and documents are then compared in stream
+ * order, so the result does not depend on the parallelism. The signatures of kept documents stay in memory
+ * (4 bytes per hash function per document).
+ * @author Guangwen Liu
+ */
+public class NearDuplicateFilter implements Iterator<DocItem>, Closeable {
+    public static final int ShingleLength = 5;
+    public static final int DefaultNumHashes = 128;
+    private static final int DocsPerThread = 64;
+
+    private final Iterator<DocItem> docs;
+    private final double threshold;
+    private final int numHashes;
+    private final int bands;
+    private final int rows;
+    private final long[] multipliers;
+    private final long[] addends;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    //Kept documents: signatures, and their numbers by band hash
+    private final List<int[]> signatures = new ArrayList<>();
+    private final List<Map<Long,IntArrayList>> bandIndex;
+    private final ArrayDeque<DocItem> ready = new ArrayDeque<>();
+
+    private long readDocs;
+    private long removedDocs;
+    private long keptChars;
+    private long removedChars;
+
+    /**
+     * @param docs Documents to filter
+     * @param threshold Documents with an estimated Jaccard similarity of at least this to an earlier document are dropped
+     * @param parallelism Number of threads computing signatures
+     */
+    public NearDuplicateFilter(Iterator<DocItem> docs, double threshold, int parallelism) {
+        this(docs, threshold, DefaultNumHashes, bandsFor(threshold, DefaultNumHashes), parallelism);
+    }
+
+    /**
+     * @param docs Documents to filter
+     * @param threshold Documents with an estimated Jaccard similarity of at least this to an earlier document are dropped
+     * @param numHashes Number of MinHash functions
+     * @param bands Number of LSH bands; must divide numHashes
+     * @param parallelism Number of threads computing signatures
+     */
+    public NearDuplicateFilter(Iterator<DocItem> docs, double threshold, int numHashes, int bands, int parallelism) {
+        if( threshold <= 0 || threshold > 1 ) throw new IllegalArgumentException("Invalid threshold (must be in (0,1])");
+        if( numHashes <= 0 || bands <= 0 || numHashes % bands != 0 )
+            throw new IllegalArgumentException("Invalid bands (must divide numHashes)");
+        if( parallelism <= 0 ) throw new IllegalArgumentException("Invalid parallelism (must be >0)");
+        this.docs = docs;
+        this.threshold = threshold;
+        this.numHashes = numHashes;
+        this.bands = bands;
+        this.rows = numHashes / bands;
+        this.parallelism = parallelism;
+
+        //Seeded, so signatures and results are repeatable
+        Random r = new Random(12345);
+        multipliers = new long[numHashes];
+        addends = new long[numHashes];
+        for( int i=0; i<numHashes; i++ ){
+            multipliers[i] = r.nextLong() | 1L;
+            addends[i] = r.nextLong();
+        }
+        bandIndex = new ArrayList<>(bands);
+        for( int i=0; i<bands; i++ ) bandIndex.add(new HashMap<Long,IntArrayList>());
+
+        executor = parallelism == 1 ? null : Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private int n = 0;
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable, "MinHash-" + n++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Number of bands for numHashes hash functions whose LSH threshold (1/bands)^(1/rows) is closest to the
+     * given threshold without exceeding it, so that few documents above the threshold are missed
+     */
+    public static int bandsFor(double threshold, int numHashes) {
+        int best = numHashes;
+        double bestThreshold = 0.0;
+        for( int b=1; b<=numHashes; b++ ){
+            if( numHashes % b != 0 ) continue;
+            double t = Math.pow(1.0 / b, b / (double) numHashes);
+            if( t <= threshold && t > bestThreshold ){
+                best = b;
+                bestThreshold = t;
+            }
+        }
+        return best;
+    }
+
+    /** MinHash signature over the character shingles of the text */
+    int[] signature(String text) {
+        int[] sig = new int[numHashes];
+        Arrays.fill(sig, Integer.MAX_VALUE);
+        int n = text.length();
+        int shingles = Math.max(n - ShingleLength + 1, 1);
+        for( int s=0; s<shingles; s++ ){
+            long h = 0;
+            int end = Math.min(s + ShingleLength, n);
+            for( int i=s; i<end; i++ ) h = h * 0x100000001b3L + text.charAt(i);
+            h ^= h >>> 29;
+            for( int j=0; j<numHashes; j++ ){
+                int v = (int) ((h * multipliers[j] + addends[j]) >>> 32);
+                if( v < sig[j] ) sig[j] = v;
+            }
+        }
+        return sig;
+    }
+
+    private long bandKey(int[] sig, int band) {
+        long key = band;
+        for( int i=band*rows; i<(band+1)*rows; i++ ) key = key * 0x9e3779b97f4a7c15L + sig[i];
+        return key;
+    }
+
+    private double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for( int i=0; i<numHashes; i++ ) if( a[i] == b[i] ) equal++;
+        return equal / (double) numHashes;
+    }
+
+    /** Reads the next batch of documents and queues the ones that are not near-duplicates */
+    private void filterBatch() {
+        int batchSize = parallelism * DocsPerThread;
+        final List<DocItem> batch = new ArrayList<>(batchSize);
+        while( batch.size() < batchSize && docs.hasNext() ) batch.add(docs.next());
+        final int[][] sigs = new int[batch.size()][];
+
+        if( executor == null ){
+            for( int i=0; i<batch.size(); i++ ) sigs[i] = signature(batch.get(i).getDocContent());
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>(parallelism);
+            for( int t=0; t<parallelism; t++ ){
+                final int from = (int) ((long) batch.size() * t / parallelism);
+                final int to = (int) ((long) batch.size() * (t + 1) / parallelism);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for( int i=from; i<to; i++ ) sigs[i] = signature(batch.get(i).getDocContent());
+                        return null;
+                    }
+                });
+            }
+            try {
+                for( Future<Void> f : executor.invokeAll(tasks) ) f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        for( int i=0; i<batch.size(); i++ ){
+            DocItem doc = batch.get(i);
+            int length = doc.getDocContent().length();
+            readDocs++;
+            if( length > 0 && isDuplicate(sigs[i]) ){
+                removedDocs++;
+                removedChars += length;
+                continue;
+            }
+            if( length > 0 ) add(sigs[i]);
+            keptChars += length;
+            ready.add(doc);
+        }
+    }
+
+    private boolean isDuplicate(int[] sig) {
+        Set<Integer> checked = new HashSet<>();
+        for( int b=0; b<bands; b++ ){
+            IntArrayList candidates = bandIndex.get(b).get(bandKey(sig, b));
+            if( candidates == null ) continue;
+            for( int i=0; i<candidates.size(); i++ ){
+                int doc = candidates.get(i);
+                if( checked.add(doc) && similarity(sig, signatures.get(doc)) >= threshold ) return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(int[] sig) {
+        int doc = signatures.size();
+        signatures.add(sig);
+        for( int b=0; b<bands; b++ ){
+            Long key = bandKey(sig, b);
+            IntArrayList docsInBucket = bandIndex.get(b).get(key);
+            if( docsInBucket == null ){
+                docsInBucket = new IntArrayList(4);
+                bandIndex.get(b).put(key, docsInBucket);
+            }
+            docsInBucket.add(doc);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while( ready.isEmpty() && docs.hasNext() ) filterBatch();
+        if( ready.isEmpty() ) close();
+        return !ready.isEmpty();
+    }
+
+    @Override
+    public DocItem next() {
+        if( !hasNext() ) throw new NoSuchElementException();
+        return ready.poll();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Stops the signature threads; called automatically at the end of the stream */
+    @Override
+    public void close() {
+        if( executor != null ) executor.shutdownNow();
+    }
+
+    public long getReadDocs() {
+        return readDocs;
+    }
+
+    public long getRemovedDocs() {
+        return removedDocs;
+    }
+
+    public long getRemovedChars() {
+        return removedChars;
+    }
+
+    /**
+     * Tokens in the removed documents, estimated from the tokens per character of the kept documents,
+     * since removed documents are never tokenized
+     * @param keptTokens Number of tokens of the kept documents
+     */
+    public long estimateRemovedTokens(long keptTokens) {
+        return keptChars == 0 ? 0 : Math.round(keptTokens * (removedChars / (double) keptChars));
+    }
+
+    /**
+     * Describes the filter settings that affect which documents are kept, e.g. for cache keys
+     */
+    public String describe() {
+        return describe(threshold, numHashes, bands);
+    }
+
+    /**
+     * Describes a filter with the default number of hash functions and bands for the threshold
+     */
+    public static String describe(double threshold) {
+        return describe(threshold, DefaultNumHashes, bandsFor(threshold, DefaultNumHashes));
+    }
+
+    private static String describe(double threshold, int numHashes, int bands) {
+        return "NearDuplicateFilter(threshold=" + threshold + ",hashes=" + numHashes + ",bands=" + bands
+                + ",shingle=" + ShingleLength + ")";
+    }
+
+    @Override
+    public String toString() {
+        return "NearDuplicateFilter: removed " + removedDocs + " of " + readDocs + " documents (" + removedChars + " characters)";
+    }
+}
@@ -0,0 +1,105 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.io.Closeable;
+import java.sql.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads {@link DocItem}s row by row from an open query, so only the current fetch block is held in memory.
+ * The statement and connection are closed when the last row has been read, or by {@link #close()}.
+ * @author Guangwen Liu
+ */
+public class SqliteDocIterator implements Iterator<DocItem>, Closeable {
+    private Connection connection;
+    private Statement statement;
+    private ResultSet rs;
+    private DocItem nextItem;
+    private boolean closed;
+
+    /**
+     * @param connString JDBC connection string
+     * @param sql query returning (id, content) rows
+     * @param fetchSize number of rows the driver fetches at a time
+     */
+    public SqliteDocIterator(String connString, String sql, int fetchSize) throws SQLException {
+        if( fetchSize <= 0 ) throw new IllegalArgumentException("Invalid fetchSize (must be >0)");
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite JDBC driver not found", e);
+        }
+
+        try {
+            connection = DriverManager.getConnection(connString);
+            statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            rs = statement.executeQuery(sql);
+            rs.setFetchSize(fetchSize);
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+        advance();
+    }
+
+    private void advance() {
+        nextItem = null;
+        if(closed) return;
+        try {
+            if(rs.next()){
+                nextItem = LoadDataFromDB.toDocItem(rs);
+            } else {
+                close();
+            }
+        } catch (SQLException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextItem != null;
+    }
+
+    @Override
+    public DocItem next() {
+        if(nextItem == null) throw new NoSuchElementException();
+        DocItem item = nextItem;
+        advance();
+        return item;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.gmo.isto.dlwork.tools;
+
+import org.deeplearning4j.text.tokenization.tokenizer.TokenPreProcess;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the tokens of another tokenizer into subword units with a {@link BpeModel}.
+ * The token preprocessor is applied to whole tokens, before they are split.
+ * @author Guangwen Liu
+ */
+public class SubwordTokenizer implements Tokenizer {
+    private final Tokenizer words;
+    private final BpeModel bpe;
+    //Units of the current token
+    private List<String> pending = Collections.emptyList();
+    private int pendingPos;
+
+    public SubwordTokenizer(Tokenizer words, BpeModel bpe) {
+        this.words = words;
+        this.bpe = bpe;
+    }
+
+    @Override
+    public boolean hasMoreTokens() {
+        while(pendingPos >= pending.size()){
+            if(!words.hasMoreTokens()) return false;
+            String token = words.nextToken();
+            pending = token == null ? Collections.<String>emptyList() : bpe.encode(token);
+            pendingPos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int countTokens() {
+        //Splits all remaining tokens, so they can still be returned afterwards
+        List<String> all = new ArrayList<>(pending.subList(pendingPos, pending.size()));
+        while(words.hasMoreTokens()){
+            String token = words.nextToken();
+            if(token != null) all.addAll(bpe.encode(token));
+        }
+        pending = all;
+        pendingPos = 0;
+        return all.size();
+    }
+
+    @Override
+    public String nextToken() {
+        if(!hasMoreTokens()) return null;
+        return pending.get(pendingPos++);
+    }
+
+    @Override
+    public List<String> getTokens() {
+        List<String> tokens = new ArrayList<>();
+        while(hasMoreTokens()) tokens.add(nextToken());
+        return tokens;
+    }
+
+    @Override
+    public void setTokenPreProcessor(TokenPreProcess tokenPreProcessor) {
+        words.setTokenPreProcessor(tokenPreProcessor);
+    }
+}
@@ -0,0 +1,157 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of tokenized paragraphs, keyed by a 128-bit hash of their text. News corpora repeat
+ * wire stories and boilerplate paragraphs, and every repeat costs one lookup instead of a morphological analysis.
+ *
+ * A paragraph ends with a "。" that is followed by a line break or the end of the text; tokenizing paragraph by
+ * paragraph gives the tokens of the whole text, see {@link JapaneseTokenizer}.
+ * The cache holds at most maxTokens tokens, and is safe to share between threads.
+ * @author Guangwen Liu
+ */
+public class TokenizationCache {
+    public static final int DefaultMaxTokens = 1000000;
+
+    private static final String[] NoTokens = new String[0];
+
+    private final int maxTokens;
+    private final LinkedHashMap<Key,String[]> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long tokenCount;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /** Hash of a paragraph; two independent 64-bit hashes and the length, so collisions can be ignored */
+    private static final class Key {
+        private final long h1;
+        private final long h2;
+        private final int length;
+
+        Key(String text, int from, int to) {
+            long a = 0xcbf29ce484222325L;   //FNV-1a
+            long b = 0;
+            for(int i=from; i<to; i++){
+                char c = text.charAt(i);
+                a = (a ^ c) * 0x100000001b3L;
+                b = b * 0x9e3779b97f4a7c15L + c + 1;
+            }
+            h1 = a;
+            h2 = b;
+            length = to - from;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return h1 == k.h1 && h2 == k.h2 && length == k.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (h1 ^ (h1 >>> 32));
+        }
+    }
+
+    public TokenizationCache() {
+        this(DefaultMaxTokens);
+    }
+
+    public TokenizationCache(int maxTokens) {
+        if(maxTokens <= 0) throw new IllegalArgumentException("Invalid maxTokens (must be >0)");
+        this.maxTokens = maxTokens;
+    }
+
+    /**
+     * @return index just after the paragraph starting at from
+     */
+    static int paragraphEnd(String text, int from) {
+        int end = text.indexOf('。', from);
+        while(end >= 0){
+            if(end + 1 == text.length()) break;
+            char next = text.charAt(end + 1);
+            if(next == '\n' || next == '\r') break;
+            end = text.indexOf('。', end + 1);
+        }
+        return end < 0 ? text.length() : end + 1;
+    }
+
+    /**
+     * Tokens of text.substring(from, to) as returned by a {@link JapaneseTokenizer} without preprocessor,
+     * tokenized with kuromoji if they are not cached
+     */
+    public String[] tokenize(String text, int from, int to, org.atilika.kuromoji.Tokenizer kuromoji) {
+        Key key = new Key(text, from, to);
+        synchronized(this){
+            String[] tokens = entries.get(key);
+            if(tokens != null){
+                hits++;
+                return tokens;
+            }
+            misses++;
+        }
+
+        JapaneseTokenizer t = new JapaneseTokenizer(text.substring(from, to), kuromoji, true);
+        List<String> list = new ArrayList<>();
+        while(t.hasMoreTokens()){
+            String token = t.nextToken();
+            if(token != null) list.add(token);
+        }
+        String[] tokens = list.isEmpty() ? NoTokens : list.toArray(new String[list.size()]);
+
+        synchronized(this){
+            String[] old = entries.put(key, tokens);
+            if(old != null) tokenCount -= old.length;
+            tokenCount += tokens.length;
+            Iterator<Map.Entry<Key,String[]>> it = entries.entrySet().iterator();
+            while(tokenCount > maxTokens && it.hasNext()){
+                tokenCount -= it.next().getValue().length;
+                it.remove();
+                evictions++;
+            }
+        }
+        return tokens;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0.0 : hits / (double) (hits + misses);
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Number of cached paragraphs */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTokenCount() {
+        return tokenCount;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        tokenCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TokenizationCache: %d paragraphs, %d tokens, hit rate %.1f%% (%d hits, %d misses), %d evictions",
+                entries.size(), tokenCount, 100 * getHitRate(), hits, misses, evictions);
+    }
+}
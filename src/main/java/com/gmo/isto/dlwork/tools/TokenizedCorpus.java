@@ -0,0 +1,346 @@
+package com.gmo.isto.dlwork.tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Token sequence of a contiguous range of documents plus the word statistics of that range.
+ * Ranges tokenized by different workers are merged with {@link #append(TokenizedCorpus)} in document order,
+ * so the merged result is the same as tokenizing all documents on one thread.
+ *
+ * Tokens are stored as ints referring to a local dictionary, so each distinct word is kept only once.
+ * The final vocabulary is known after counting, and {@link #encode(List)} then converts the corpus to vocabulary indexes in one pass.
+ * @author Guangwen Liu
+ */
+public class TokenizedCorpus {
+    //Vocabulary entry that stands for all words outside a bounded vocabulary
+    public static final String UnknownWord = "<UNK>";
+
+    private final int minWordFreq;
+    //Local word ids, in token order
+    private IntArrayList tokens = new IntArrayList();
+    //Local dictionary: stats indexed by local word id
+    private List<WordStat> localWords = new ArrayList<>();
+    private Map<String, WordStat> wordStats = new HashMap<>();
+    private int docCount;
+    //Token index just after the last token of each document
+    private IntArrayList docEnds = new IntArrayList(256);
+
+    /**
+     * Frequency of a word, and the positions of its first (minWordFreq + 1) occurrences.
+     * The last of those positions is where the single-threaded build admitted the word to the vocabulary.
+     */
+    static class WordStat {
+        final String word;
+        int localId;
+        int freq;
+        int[] firstPositions;
+
+        WordStat(String word, int localId, int minWordFreq) {
+            this.word = word;
+            this.localId = localId;
+            firstPositions = new int[minWordFreq + 1];
+        }
+
+        void addPosition(int pos) {
+            if(freq < firstPositions.length) firstPositions[freq] = pos;
+            freq++;
+        }
+    }
+
+    /**
+     * @param minWordFreq words must occur more often than this to enter the vocabulary
+     */
+    public TokenizedCorpus(int minWordFreq) {
+        this.minWordFreq = minWordFreq;
+    }
+
+    public void addWord(String word) {
+        WordStat stat = wordStats.get(word);
+        if(stat == null){
+            stat = new WordStat(word, localWords.size(), minWordFreq);
+            wordStats.put(word, stat);
+            localWords.add(stat);
+        }
+        stat.addPosition(tokens.size());
+        tokens.add(stat.localId);
+    }
+
+    public void endDocument() {
+        docCount++;
+        docEnds.add(tokens.size());
+    }
+
+    /**
+     * Appends the tokens of the documents that directly follow this range.
+     * @param next corpus of the following documents; it must not be used afterwards
+     */
+    public void append(TokenizedCorpus next) {
+        int offset = tokens.size();
+        int[] remap = new int[next.localWords.size()];
+        for(WordStat right : next.localWords){
+            WordStat left = wordStats.get(right.word);
+            int nRight = Math.min(right.freq, right.firstPositions.length);
+            if(left == null){
+                for(int i=0; i<nRight; i++) right.firstPositions[i] += offset;
+                remap[right.localId] = localWords.size();
+                right.localId = localWords.size();
+                wordStats.put(right.word, right);
+                localWords.add(right);
+            } else {
+                for(int i=0; i<nRight && left.freq + i < left.firstPositions.length; i++){
+                    left.firstPositions[left.freq + i] = right.firstPositions[i] + offset;
+                }
+                left.freq += right.freq;
+                remap[right.localId] = left.localId;
+            }
+        }
+
+        int n = next.tokens.size();
+        int[] nextTokens = next.tokens.array();
+        tokens.ensureCapacity(offset + n);
+        for(int i=0; i<n; i++) tokens.add(remap[nextTokens[i]]);
+        docCount += next.docCount;
+        int[] nextEnds = next.docEnds.array();
+        for(int i=0; i<next.docEnds.size(); i++) docEnds.add(nextEnds[i] + offset);
+    }
+
+    /**
+     * Returns the words occurring more than minWordFreq times, in vocabulary index order.
+     * A word's index is given by the position where it reached minWordFreq + 1 occurrences.
+     */
+    public List<String> buildVocabulary() {
+        List<WordStat> frequent = new ArrayList<>();
+        for(WordStat stat : localWords){
+            if(stat.freq > minWordFreq) frequent.add(stat);
+        }
+        Collections.sort(frequent, new Comparator<WordStat>() {
+            @Override
+            public int compare(WordStat a, WordStat b) {
+                int pa = a.firstPositions[minWordFreq];
+                int pb = b.firstPositions[minWordFreq];
+                return pa < pb ? -1 : (pa == pb ? 0 : 1);
+            }
+        });
+        List<String> vocab = new ArrayList<>(frequent.size());
+        for(WordStat stat : frequent) vocab.add(stat.word);
+        return vocab;
+    }
+
+    /**
+     * Returns a vocabulary of at most maxVocabSize entries: {@link #UnknownWord} at index 0, followed by the
+     * (maxVocabSize - 1) most frequent words in order of decreasing frequency. Ties are broken by first occurrence,
+     * so the result does not depend on how the corpus was split between workers.
+     */
+    public List<String> buildVocabulary(int maxVocabSize) {
+        if(maxVocabSize < 2) throw new IllegalArgumentException("Invalid maxVocabSize (must be >=2)");
+        List<WordStat> words = new ArrayList<>(localWords.size());
+        for(WordStat stat : localWords){
+            if(!stat.word.equals(UnknownWord)) words.add(stat);
+        }
+        Collections.sort(words, new Comparator<WordStat>() {
+            @Override
+            public int compare(WordStat a, WordStat b) {
+                if(a.freq != b.freq) return a.freq > b.freq ? -1 : 1;
+                int pa = a.firstPositions[0];
+                int pb = b.firstPositions[0];
+                return pa < pb ? -1 : (pa == pb ? 0 : 1);
+            }
+        });
+        int n = Math.min(words.size(), maxVocabSize - 1);
+        List<String> vocab = new ArrayList<>(n + 1);
+        vocab.add(UnknownWord);
+        for(int i=0; i<n; i++) vocab.add(words.get(i).word);
+        return vocab;
+    }
+
+    /**
+     * Document boundaries in the output of {@link #encode(List, int)} with the same arguments
+     * @return for each document, the index just after its last kept token
+     */
+    public int[] encodeDocumentEnds(List<String> vocabulary, int unknownId) {
+        boolean[] kept = new boolean[localWords.size()];
+        if(unknownId >= 0) Arrays.fill(kept, true);
+        for(String word : vocabulary){
+            WordStat stat = wordStats.get(word);
+            if(stat != null) kept[stat.localId] = true;
+        }
+
+        int[] local = tokens.array();
+        int[] ends = new int[docEnds.size()];
+        int[] rawEnds = docEnds.array();
+        int pos = 0;
+        int keptCount = 0;
+        for(int d=0; d<ends.length; d++){
+            for(; pos<rawEnds[d]; pos++){
+                if(kept[local[pos]]) keptCount++;
+            }
+            ends[d] = keptCount;
+        }
+        return ends;
+    }
+
+    /**
+     * Extends a vocabulary built from an earlier part of this corpus, e.g. after documents were appended, without
+     * changing the index of any word already in it. Without a size limit, words that now occur more than minWordFreq
+     * times are added in the order they got there, as {@link #buildVocabulary()} would index them. With a limit,
+     * the most frequent words that are not in the vocabulary yet fill it up to maxVocabSize entries.
+     * @param vocabulary Existing vocabulary, in index order
+     * @param maxVocabSize Vocabulary size limit, or 0 for none
+     * @return a new list: the existing vocabulary followed by the added words
+     */
+    public List<String> extendVocabulary(List<String> vocabulary, int maxVocabSize) {
+        Set<String> known = new HashSet<>(vocabulary);
+        List<WordStat> added = new ArrayList<>();
+        for(WordStat stat : localWords){
+            if(known.contains(stat.word) || stat.word.equals(UnknownWord)) continue;
+            if(maxVocabSize > 0 || stat.freq > minWordFreq) added.add(stat);
+        }
+        if(maxVocabSize > 0){
+            Collections.sort(added, new Comparator<WordStat>() {
+                @Override
+                public int compare(WordStat a, WordStat b) {
+                    if(a.freq != b.freq) return a.freq > b.freq ? -1 : 1;
+                    int pa = a.firstPositions[0];
+                    int pb = b.firstPositions[0];
+                    return pa < pb ? -1 : (pa == pb ? 0 : 1);
+                }
+            });
+        } else {
+            Collections.sort(added, new Comparator<WordStat>() {
+                @Override
+                public int compare(WordStat a, WordStat b) {
+                    int pa = a.firstPositions[minWordFreq];
+                    int pb = b.firstPositions[minWordFreq];
+                    return pa < pb ? -1 : (pa == pb ? 0 : 1);
+                }
+            });
+        }
+        int n = maxVocabSize > 0 ? Math.max(0, Math.min(added.size(), maxVocabSize - vocabulary.size())) : added.size();
+        List<String> vocab = new ArrayList<>(vocabulary.size() + n);
+        vocab.addAll(vocabulary);
+        for(int i=0; i<n; i++) vocab.add(added.get(i).word);
+        return vocab;
+    }
+
+    /**
+     * Converts the corpus to indexes into the given vocabulary, dropping words that are not in it.
+     * @return buffer of vocabulary indexes, with limit set to the number of kept tokens
+     */
+    public IntBuffer encode(List<String> vocabulary) {
+        return encode(vocabulary, -1);
+    }
+
+    /**
+     * Converts the corpus to indexes into the given vocabulary.
+     * @param unknownId index for words that are not in the vocabulary, or -1 to drop them
+     * @return buffer of vocabulary indexes, with limit set to the number of kept tokens
+     */
+    public IntBuffer encode(List<String> vocabulary, int unknownId) {
+        int[] localToVocab = new int[localWords.size()];
+        Arrays.fill(localToVocab, unknownId);
+        for(int i=0; i<vocabulary.size(); i++){
+            WordStat stat = wordStats.get(vocabulary.get(i));
+            if(stat != null) localToVocab[stat.localId] = i;
+        }
+
+        int n = tokens.size();
+        int[] local = tokens.array();
+        int[] ids = new int[n];
+        int kept = 0;
+        for(int i=0; i<n; i++){
+            int id = localToVocab[local[i]];
+            if(id >= 0) ids[kept++] = id;
+        }
+        IntBuffer out = IntBuffer.wrap(ids);
+        out.limit(kept);
+        return out;
+    }
+
+    /**
+     * Writes the tokens and word statistics, so more documents can be appended after {@link #read(DataInputStream)}
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(minWordFreq);
+        out.writeInt(docCount);
+        out.writeInt(localWords.size());
+        for(WordStat stat : localWords){
+            out.writeUTF(stat.word);
+            out.writeInt(stat.freq);
+            int n = Math.min(stat.freq, stat.firstPositions.length);
+            for(int i=0; i<n; i++) out.writeInt(stat.firstPositions[i]);
+        }
+        int n = tokens.size();
+        int[] local = tokens.array();
+        out.writeInt(n);
+        for(int i=0; i<n; i++) out.writeInt(local[i]);
+        int[] ends = docEnds.array();
+        for(int d=0; d<docCount; d++) out.writeInt(ends[d]);
+    }
+
+    public static TokenizedCorpus read(DataInputStream in) throws IOException {
+        TokenizedCorpus corpus = new TokenizedCorpus(in.readInt());
+        corpus.docCount = in.readInt();
+        int nWords = in.readInt();
+        for(int w=0; w<nWords; w++){
+            WordStat stat = new WordStat(in.readUTF(), w, corpus.minWordFreq);
+            stat.freq = in.readInt();
+            int n = Math.min(stat.freq, stat.firstPositions.length);
+            for(int i=0; i<n; i++) stat.firstPositions[i] = in.readInt();
+            corpus.wordStats.put(stat.word, stat);
+            corpus.localWords.add(stat);
+        }
+        int n = in.readInt();
+        corpus.tokens.ensureCapacity(n);
+        for(int i=0; i<n; i++) corpus.tokens.add(in.readInt());
+        corpus.docEnds.ensureCapacity(corpus.docCount);
+        for(int d=0; d<corpus.docCount; d++) corpus.docEnds.add(in.readInt());
+        return corpus;
+    }
+
+    /** Frequency of every distinct word, in order of first occurrence, e.g. to train a {@link BpeModel} */
+    public Map<String, Integer> getWordFrequencies() {
+        Map<String, Integer> freqs = new LinkedHashMap<>();
+        for(WordStat stat : localWords) freqs.put(stat.word, stat.freq);
+        return freqs;
+    }
+
+    /**
+     * Splits every token into subword units, without tokenizing the documents again.
+     * @return corpus of the units, with the same minimum frequency and documents
+     */
+    public TokenizedCorpus toSubwords(BpeModel bpe) {
+        List<List<String>> unitsOf = new ArrayList<>(localWords.size());
+        for(WordStat stat : localWords) unitsOf.add(bpe.encode(stat.word));
+
+        TokenizedCorpus out = new TokenizedCorpus(minWordFreq);
+        out.tokens.ensureCapacity(tokens.size());
+        int n = tokens.size();
+        int[] local = tokens.array();
+        int[] ends = docEnds.array();
+        int d = 0;
+        for(int i=0; i<n; i++){
+            for(; d<docCount && ends[d]==i; d++) out.endDocument();
+            for(String unit : unitsOf.get(local[i])) out.addWord(unit);
+        }
+        for(; d<docCount; d++) out.endDocument();
+        return out;
+    }
+
+    /** Number of tokens, before any filtering */
+    public int size() {
+        return tokens.size();
+    }
+
+    public int getWordFreq(String word) {
+        WordStat stat = wordStats.get(word);
+        return stat == null ? 0 : stat.freq;
+    }
+
+    public int getDocCount() {
+        return docCount;
+    }
+}
@@ -0,0 +1,113 @@
+package com.gmo.isto.dlwork;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decoding and line ending normalization of {@link CharacterIterator}, with decode windows of every size from
+ * 4 bytes to the whole file, so that every character and line terminator is split at some window boundary.
+ * @author Guangwen Liu
+ */
+public class CharacterIteratorTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset UTF16LE = Charset.forName("UTF-16LE");
+    private static final Charset UTF16BE = Charset.forName("UTF-16BE");
+
+    //Every character is valid, and its index is the character itself
+    private static int[] identity() {
+        int[] charToIdx = new int[65536];
+        for( int i=0; i<charToIdx.length; i++ ) charToIdx[i] = i;
+        return charToIdx;
+    }
+
+    private static File write(String text, Charset encoding) throws IOException {
+        File f = File.createTempFile("charIterTest", ".txt");
+        f.deleteOnExit();
+        Files.write(f.toPath(), text.getBytes(encoding));
+        return f;
+    }
+
+    //Decodes the file with every window size, and checks that the result is the same for all of them
+    private static void assertConverted(String text, Charset encoding, String expected) throws IOException {
+        File f = write(text, encoding);
+        try {
+            int[] charToIdx = identity();
+            for( int window=4; window<=Math.max(f.length(), 4); window++ ){
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                long totalChars = CharacterIterator.convertFile(f, encoding, window, charToIdx, 2, out);
+                String message = "window " + window;
+                assertEquals(message, expected, new String(out.toByteArray(), UTF16BE));
+                assertEquals(message, expected.length(), totalChars);
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void crlfSplitAcrossWindows() throws IOException {
+        assertConverted("ab\r\ncd\r\n\r\nef\n", UTF8, "ab\ncd\n\nef\n");
+        assertConverted("日本\r\n語\r\n", UTF8, "日本\n語\n");
+    }
+
+    @Test
+    public void mixedLineEndings() throws IOException {
+        assertConverted("a\r\nb\rc\nd\r\r\ne", UTF8, "a\nb\nc\nd\n\ne\n");
+    }
+
+    @Test
+    public void surrogatePairSplitAcrossWindows() throws IOException {
+        String text = "x😀y𠮷\n";
+        assertConverted(text, UTF8, text);
+        assertConverted(text, UTF16LE, text);
+    }
+
+    @Test
+    public void loneCarriageReturnAtEnd() throws IOException {
+        assertConverted("abc\r", UTF8, "abc\n");
+    }
+
+    @Test
+    public void noTrailingNewline() throws IOException {
+        assertConverted("abc\ndef", UTF8, "abc\ndef\n");
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        assertConverted("", UTF8, "");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowTooSmall() throws IOException {
+        File f = write("abc", UTF8);
+        try {
+            CharacterIterator.convertFile(f, UTF8, 3, identity(), 2, new ByteArrayOutputStream());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void indexesAcrossSegments() throws IOException {
+        String text = "Hello, world.\r\nGood bye\r~world";
+        String expected = "Hello, world.\nGood bye\nworld\n";     //'~' is not in the minimal character set
+        char[] valid = CharacterIterator.getMinimalCharacterSet();
+        File f = write(text, UTF8);
+        try {
+            //4 byte windows and 2 byte index segments
+            CharacterIterator iter = new CharacterIterator(f.getPath(), UTF8, 1, 2, valid, new Random(12345), 4, 1);
+            assertEquals(expected.length(), iter.getNumCharacters());
+            for( int i=0; i<expected.length(); i++ ) assertEquals("position " + i, expected.charAt(i), valid[iter.indexAt(i)]);
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.gmo.isto.dlwork.tools;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Merges learned by {@link BpeModel#train(Map, int)} on small vocabularies worked out by hand, their use in
+ * {@link BpeModel#encode(String)}, and saving and loading a model.
+ * @author Guangwen Liu
+ */
+public class BpeModelTest {
+
+    //The example of Sennrich et al.: ties go to the pair of earlier units, units numbered in code point order first
+    private static Map<String,Integer> lowNewestWidest() {
+        Map<String,Integer> freqs = new HashMap<>();
+        freqs.put("low", 5);
+        freqs.put("lower", 2);
+        freqs.put("newest", 6);
+        freqs.put("widest", 3);
+        return freqs;
+    }
+
+    private static String[] merges(BpeModel bpe) {
+        List<String[]> merges = bpe.getMerges();
+        String[] pairs = new String[merges.size()];
+        for( int i=0; i<pairs.length; i++ ) pairs[i] = merges.get(i)[0] + "+" + merges.get(i)[1];
+        return pairs;
+    }
+
+    private static String[] encode(BpeModel bpe, String token) {
+        List<String> units = bpe.encode(token);
+        return units.toArray(new String[units.size()]);
+    }
+
+    @Test
+    public void learnsMergesInOrder() {
+        BpeModel bpe = BpeModel.train(lowNewestWidest(), 100);
+        assertArrayEquals(new String[]{"e+s", "es+t", "l+o", "lo+w", "e+w", "n+ew", "new+est", "d+est", "i+dest",
+                "w+idest", "e+r", "low+er"}, merges(bpe));
+    }
+
+    @Test
+    public void stopsAtNumMerges() {
+        BpeModel bpe = BpeModel.train(lowNewestWidest(), 4);
+        assertArrayEquals(new String[]{"e+s", "es+t", "l+o", "lo+w"}, merges(bpe));
+        assertArrayEquals(new String[]{"low", "est"}, encode(bpe, "lowest"));
+        assertArrayEquals(new String[]{"n", "e", "w", "e", "r"}, encode(bpe, "newer"));
+        //Characters never seen in training stay single units
+        assertArrayEquals(new String[]{"low", "ö"}, encode(bpe, "lowö"));
+    }
+
+    @Test
+    public void encodesTrainingWordsWhole() {
+        BpeModel bpe = BpeModel.train(lowNewestWidest(), 100);
+        for( String w : lowNewestWidest().keySet() ) assertArrayEquals(w, new String[]{w}, encode(bpe, w));
+        assertEquals("lowest", BpeModel.decode(bpe.encode("lowest")));
+    }
+
+    @Test
+    public void overlappingPairs() {
+        //"aaaa" holds the pair (a,a) three times, and every merge makes the counts of earlier queue entries stale
+        Map<String,Integer> freqs = new HashMap<>();
+        freqs.put("aaaa", 3);
+        freqs.put("aaa", 2);
+        BpeModel bpe = BpeModel.train(freqs, 100);
+        assertArrayEquals(new String[]{"a+a", "aa+aa", "aa+a"}, merges(bpe));
+        assertArrayEquals(new String[]{"aaaa", "aaa"}, encode(bpe, "aaaaaaa"));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        BpeModel bpe = BpeModel.train(lowNewestWidest(), 100);
+        File f = File.createTempFile("bpeModelTest", ".bin");
+        try {
+            bpe.save(f);
+            BpeModel loaded = BpeModel.load(f);
+            assertArrayEquals(merges(bpe), merges(loaded));
+            assertEquals(bpe.describe(), loaded.describe());
+            for( String token : Arrays.asList("lowest", "newer", "widest", "ö") ){
+                assertArrayEquals(token, encode(bpe, token), encode(loaded, token));
+            }
+        } finally {
+            f.delete();
+        }
+        assertNull(BpeModel.load(f));
+    }
+}